@@ -0,0 +1,7 @@
+#!/bin/sh
+# Builds unluac together with the benchmarks and runs them. Options are
+# passed on to the harness, e.g. ./bench.sh --filter huge --time 2000
+cd $(dirname $0)
+mkdir -p build
+javac -nowarn -d build $(find ../src src -name '*.java') || exit 1
+java -cp build unluac.bench.Benchmark --corpus corpus "$@"
@@ -0,0 +1,365 @@
+package unluac.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import unluac.Configuration;
+import unluac.Main;
+import unluac.assemble.Assembler;
+import unluac.assemble.AssemblerException;
+import unluac.decompile.Decompiler;
+import unluac.decompile.Disassembler;
+import unluac.decompile.Output;
+import unluac.decompile.OutputProvider;
+import unluac.parse.LFunction;
+
+/**
+ * Measures the throughput of parsing, decompiling, printing, disassembling
+ * and assembling a corpus of chunks. Every chunk is assembled from a listing
+ * in the corpus directory, and a huge chunk is generated. Each benchmark is
+ * warmed up and then timed over several iterations, reporting operations per
+ * second and the bytes the benchmark thread allocated per operation.
+ */
+public class Benchmark {
+
+  private static final String[] OPERATIONS = {"parse", "decompile", "print", "disassemble", "assemble"};
+  
+  private static final int HUGE_BLOCKS = 4000;
+  
+  public static void main(String[] args) throws Exception {
+    File corpus = new File("corpus");
+    long warmup = 1000;
+    long time = 1000;
+    int iterations = 5;
+    String filter = null;
+    for(int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if(i + 1 >= args.length) {
+        usage("option \"" + arg + "\" doesn't have an argument");
+      } else if(arg.equals("--corpus")) {
+        corpus = new File(args[++i]);
+      } else if(arg.equals("--warmup")) {
+        warmup = Long.parseLong(args[++i]);
+      } else if(arg.equals("--time")) {
+        time = Long.parseLong(args[++i]);
+      } else if(arg.equals("--iterations")) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if(arg.equals("--filter")) {
+        filter = args[++i];
+      } else {
+        usage("unrecognized option: " + arg);
+      }
+    }
+    List<Chunk> chunks = load(corpus);
+    boolean counted = allocatedBytes() >= 0;
+    PrintStream out = System.out;
+    out.println(String.format("%-28s%14s%12s%14s", "benchmark", "ops/s", "error", "bytes/op"));
+    for(Chunk chunk : chunks) {
+      for(String operation : OPERATIONS) {
+        String name = chunk.name + "." + operation;
+        if(filter != null && !name.contains(filter)) continue;
+        Task task = chunk.task(operation);
+        run(task, warmup);
+        double[] rates = new double[iterations];
+        long allocated = 0;
+        long ops = 0;
+        for(int i = 0; i < iterations; i++) {
+          long before = allocatedBytes();
+          Result result = run(task, time);
+          allocated += allocatedBytes() - before;
+          ops += result.ops;
+          rates[i] = result.ops * 1e9 / result.nanos;
+        }
+        String perOp = counted ? Long.toString(allocated / ops) : "n/a";
+        out.println(String.format("%-28s%14.1f%12.1f%14s", name, mean(rates), deviation(rates), perOp));
+      }
+    }
+    out.println("(sink " + Task.sink + ")");
+  }
+  
+  private static void usage(String error) {
+    System.err.println("  error: " + error);
+    System.err.println("  usage: bench.sh [--corpus <dir>] [--warmup <ms>] [--time <ms>] [--iterations <n>] [--filter <text>]");
+    System.exit(1);
+  }
+  
+  private static class Result {
+    long ops;
+    long nanos;
+  }
+  
+  /**
+   * Runs the task over and over for about the given number of milliseconds.
+   */
+  private static Result run(Task task, long millis) throws Exception {
+    Result result = new Result();
+    long limit = millis * 1000000L;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      task.run();
+      result.ops++;
+      elapsed = System.nanoTime() - start;
+    } while(elapsed < limit);
+    result.nanos = elapsed;
+    return result;
+  }
+  
+  /**
+   * Returns the bytes allocated so far by this thread, or a negative number
+   * if the virtual machine does not count them.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if(sun.isThreadAllocatedMemorySupported()) {
+        if(!sun.isThreadAllocatedMemoryEnabled()) {
+          sun.setThreadAllocatedMemoryEnabled(true);
+        }
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return Long.MIN_VALUE;
+  }
+  
+  private static double mean(double[] values) {
+    double sum = 0.0;
+    for(double value : values) sum += value;
+    return sum / values.length;
+  }
+  
+  private static double deviation(double[] values) {
+    if(values.length < 2) return 0.0;
+    double mean = mean(values);
+    double sum = 0.0;
+    for(double value : values) sum += (value - mean) * (value - mean);
+    return Math.sqrt(sum / (values.length - 1));
+  }
+  
+  private static abstract class Task {
+  
+    /* Keeps the results of each run alive so that no work can be skipped. */
+    static long sink;
+    
+    abstract void run() throws Exception;
+  
+  }
+  
+  /**
+   * An output that only counts what is printed to it.
+   */
+  private static class CountingOutputProvider implements OutputProvider {
+  
+    long count;
+    
+    @Override
+    public void print(String s) {
+      count += s.length();
+    }
+    
+    @Override
+    public void print(byte b) {
+      count++;
+    }
+    
+    @Override
+    public void print(byte[] bytes, int offset, int length) {
+      count += length;
+    }
+    
+    @Override
+    public void println() {
+      count++;
+    }
+    
+    @Override
+    public void finish() {
+      Task.sink += count;
+    }
+  
+  }
+  
+  private static class Chunk {
+  
+    final String name;
+    final byte[] listing;
+    final byte[] bytes;
+    final Configuration config;
+    
+    Chunk(String name, byte[] listing, byte[] bytes) {
+      this.name = name;
+      this.listing = listing;
+      this.bytes = bytes;
+      config = new Configuration();
+    }
+    
+    Task task(String operation) {
+      if(operation.equals("parse")) {
+        return new Task() {
+        
+          @Override
+          void run() {
+            LFunction main = Main.bytes_to_function(bytes, config);
+            sink += main.code.length;
+          }
+        
+        };
+      } else if(operation.equals("decompile")) {
+        return new Task() {
+        
+          private final LFunction main = Main.bytes_to_function(bytes, config);
+          
+          @Override
+          void run() {
+            Decompiler d = new Decompiler(main);
+            d.decompile();
+            sink += d.declList.length;
+          }
+        
+        };
+      } else if(operation.equals("print")) {
+        return new Task() {
+        
+          private final LFunction main = Main.bytes_to_function(bytes, config);
+          private final Decompiler d = new Decompiler(main);
+          private final Decompiler.State result = d.decompile();
+          
+          @Override
+          void run() {
+            Output out = new Output(new CountingOutputProvider());
+            d.print(result, out);
+            out.finish();
+          }
+        
+        };
+      } else if(operation.equals("disassemble")) {
+        return new Task() {
+        
+          private final LFunction main = Main.bytes_to_function(bytes, config);
+          
+          @Override
+          void run() {
+            Output out = new Output(new CountingOutputProvider());
+            new Disassembler(main).disassemble(out);
+            out.finish();
+          }
+        
+        };
+      } else if(operation.equals("assemble")) {
+        return new Task() {
+        
+          @Override
+          void run() throws Exception {
+            sink += assemble(listing).length;
+          }
+        
+        };
+      } else {
+        throw new IllegalStateException(operation);
+      }
+    }
+  
+  }
+  
+  private static byte[] assemble(byte[] listing) throws IOException, AssemblerException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assembler a = new Assembler(new Configuration(), new ByteArrayInputStream(listing), out);
+    a.assemble();
+    return out.toByteArray();
+  }
+  
+  /**
+   * Assembles every listing in the corpus directory, then adds the huge
+   * chunk. The assembler only writes standard headers, so a listing named
+   * "playdate" is a Lua 5.4 listing with Playdate's type codes that is given
+   * Playdate's version number afterwards.
+   */
+  private static List<Chunk> load(File corpus) throws IOException, AssemblerException {
+    String[] names = corpus.list();
+    if(names == null) {
+      throw new IOException("no corpus directory " + corpus.getPath());
+    }
+    Arrays.sort(names);
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    for(String name : names) {
+      if(!name.endsWith(".txt")) continue;
+      byte[] listing = Files.readAllBytes(new File(corpus, name).toPath());
+      byte[] bytes = assemble(listing);
+      if(name.startsWith("playdate")) {
+        bytes = playdate(bytes);
+      }
+      chunks.add(new Chunk(name.substring(0, name.length() - 4), listing, bytes));
+    }
+    byte[] huge = huge(HUGE_BLOCKS);
+    chunks.add(new Chunk("huge", huge, assemble(huge)));
+    return chunks;
+  }
+  
+  /**
+   * Rewrites a Lua 5.4 chunk with the two byte version number of Playdate's
+   * Lua, which the parser reads as Lua 5.4 with Playdate's type codes.
+   */
+  private static byte[] playdate(byte[] lua54) {
+    byte[] bytes = new byte[lua54.length + 1];
+    System.arraycopy(lua54, 0, bytes, 0, 4);
+    bytes[4] = 0x03;
+    bytes[5] = (byte) 0xF8;
+    System.arraycopy(lua54, 5, bytes, 6, lua54.length - 5);
+    return bytes;
+  }
+  
+  /**
+   * Generates the listing of a Lua 5.1 chunk with a long main function: each
+   * block prints a number and, depending on a comparison, a closure.
+   */
+  private static byte[] huge(int blocks) {
+    StringBuilder b = new StringBuilder();
+    b.append(".version\t5.1\n\n");
+    b.append(".format\t0\n.endianness\tLITTLE\n.int_size\t4\n.size_t_size\t8\n.instruction_size\t4\n.number_format\tfloat\t8\n\n");
+    b.append(".function\tmain\n\n");
+    b.append(".source\t\"@huge.lua\"\n.linedefined\t0\n.lastlinedefined\t0\n.numparams\t0\n.is_vararg\t2\n.maxstacksize\t2\n\n");
+    b.append(".constant\tk0\t\"print\"\n");
+    for(int i = 1; i <= 16; i++) {
+      b.append(".constant\tk" + i + "\t" + i + "\n");
+    }
+    b.append("\n");
+    int line = 1;
+    for(int i = 0; i < blocks; i++) {
+      int k = 1 + i % 16;
+      int next = 1 + (i + 1) % 16;
+      b.append("getglobal\tr0\tk0\n");
+      b.append("loadk\tr1\tk" + k + "\n");
+      b.append("call\tr0\t2\t1\n");
+      b.append("lt\t0\tk" + k + "\tk" + next + "\n");
+      b.append("jmp\tl" + (line + 8) + "\n");
+      b.append("getglobal\tr0\tk0\n");
+      b.append("closure\tr1\tf0\n");
+      b.append("call\tr0\t2\t1\n");
+      b.append(".label\tl" + (line + 8) + "\n");
+      line += 8;
+    }
+    b.append("return\tr0\t1\n\n");
+    b.append(".function\tmain/f0\n\n");
+    b.append(".source\tnull\n.linedefined\t0\n.lastlinedefined\t0\n.numparams\t1\n.is_vararg\t0\n.maxstacksize\t2\n\n");
+    b.append(".local\t\"a\"\t0\t3\n\n");
+    b.append("add\tr1\tr0\tr0\n");
+    b.append("return\tr1\t2\n");
+    b.append("return\tr0\t1\n");
+    try {
+      return b.toString().getBytes("UTF-8");
+    } catch(IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+}
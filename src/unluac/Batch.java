@@ -0,0 +1,228 @@
+package unluac;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import unluac.decompile.DecompileCache;
+import unluac.decompile.Decompiler;
+import unluac.decompile.FileOutputProvider;
+import unluac.decompile.Output;
+import unluac.parse.LFunction;
+import unluac.util.PdzFile;
+
+/**
+ * Decompiles a whole directory tree of Lua bytecode files inside one process,
+ * so that the JVM start-up and JIT warm-up are paid only once. Files are
+ * spread over a fixed pool of worker threads; every file is parsed and
+ * decompiled independently, so a failure only affects its own file. With
+ * deduplication, the files share an in-memory cache of function text, so a
+ * function that appears in several files, such as a bundled library, is
+ * decompiled only once.
+ */
+public class Batch {
+  
+  private static final String INPUT_EXTENSION = ".luac";
+  private static final String OUTPUT_EXTENSION = ".lua";
+  
+  private final Configuration config;
+  private final File input;
+  private final File output;
+  private final DecompileCache cache;
+  
+  public Batch(Configuration config, File input, File output) {
+    this.config = config;
+    this.input = input;
+    this.output = output;
+    cache = config.dedup ? DecompileCache.inMemory(config) : null;
+  }
+  
+  /**
+   * Decompiles every file found under the input directory, mirroring the
+   * directory layout in the output directory. The Lua chunks inside Playdate
+   * .pdz containers are decompiled straight from memory into the directory of
+   * the container, so a whole .pdx bundle needs no extraction step. One
+   * summary line is printed to the log for each chunk, in directory order
+   * regardless of which worker finishes first.
+   *
+   * @return the number of chunks that could not be decompiled
+   */
+  public int run(PrintStream log) {
+    List<String> paths = new ArrayList<String>();
+    if(input.isDirectory()) {
+      collect(input, null, paths);
+    } else {
+      paths.add(input.getName());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.jobs));
+    List<String> names = new ArrayList<String>(paths.size());
+    List<Future<String>> results = new ArrayList<Future<String>>(paths.size());
+    for(String path : paths) {
+      final File in = input.isDirectory() ? new File(input, path) : input;
+      if(PdzFile.isPdz(path)) {
+        List<PdzFile.Entry> entries;
+        try {
+          entries = PdzFile.readLuaEntries(in);
+        } catch(IOException e) {
+          names.add(path);
+          results.add(CompletableFuture.completedFuture("FAILED  " + path + ": " + describe(e)));
+          continue;
+        }
+        String parent = new File(path).getParent();
+        for(final PdzFile.Entry entry : entries) {
+          String name = path + ":" + entry.name;
+          names.add(name);
+          String entryPath = entryPath(entry.name);
+          if(entryPath == null) {
+            results.add(CompletableFuture.completedFuture("FAILED  " + name + ": bad entry name"));
+            continue;
+          }
+          File out = new File(output, outputPath(parent == null ? entryPath : parent + File.separator + entryPath));
+          results.add(executor.submit(new Job(name, out) {
+            
+            @Override
+            LFunction parse() {
+              return Main.bytes_to_function(entry.data, config);
+            }
+            
+          }));
+        }
+      } else {
+        names.add(path);
+        results.add(executor.submit(new Job(path, new File(output, outputPath(path))) {
+          
+          @Override
+          LFunction parse() throws IOException {
+            return Main.file_to_function(in.getPath(), config);
+          }
+          
+        }));
+      }
+    }
+    executor.shutdown();
+    int failed = 0;
+    for(int i = 0; i < results.size(); i++) {
+      String line;
+      try {
+        line = results.get(i).get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+        throw new IllegalStateException("batch interrupted");
+      } catch(ExecutionException e) {
+        line = "FAILED  " + names.get(i) + ": " + describe(e.getCause());
+      }
+      if(line.startsWith("FAILED")) {
+        failed++;
+      }
+      log.println(line);
+    }
+    log.println(results.size() + " files, " + (results.size() - failed) + " decompiled, " + failed + " failed");
+    if(cache != null) {
+      long reused = cache.getReused();
+      long total = reused + cache.getDecompiled() + cache.getUncached();
+      log.println(String.format("%d functions, %d decompiled, %d reused (%.1f%% deduplicated)", total, total - reused, reused, total == 0 ? 0.0 : 100.0 * reused / total));
+    }
+    return failed;
+  }
+  
+  private abstract class Job implements Callable<String> {
+    
+    private final String path;
+    private final File out;
+    
+    Job(String path, File out) {
+      this.path = path;
+      this.out = out;
+    }
+    
+    abstract LFunction parse() throws IOException;
+    
+    @Override
+    public String call() {
+      long start = System.nanoTime();
+      try {
+        File parent = out.getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+          throw new IOException("could not create directory " + parent.getPath());
+        }
+        LFunction lmain = parse();
+        Decompiler d = new Decompiler(lmain);
+        if(cache != null) {
+          d.setCache(cache);
+        }
+        Decompiler.State result = d.decompile();
+        Output output = new Output(new FileOutputProvider(new FileOutputStream(out)));
+        try {
+          d.print(result, output);
+        } finally {
+          output.finish();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        return "ok      " + path + " (" + elapsed + " ms" + (lmain.isStripped() ? ", stripped" : "") + ")";
+      } catch(IOException e) {
+        return "FAILED  " + path + ": " + describe(e);
+      } catch(RuntimeException e) {
+        return "FAILED  " + path + ": " + describe(e);
+      } catch(StackOverflowError e) {
+        return "FAILED  " + path + ": " + describe(e);
+      }
+    }
+    
+  }
+  
+  private static String outputPath(String path) {
+    if(path.toLowerCase().endsWith(INPUT_EXTENSION)) {
+      path = path.substring(0, path.length() - INPUT_EXTENSION.length());
+    }
+    return path + OUTPUT_EXTENSION;
+  }
+  
+  /**
+   * Converts the name of a .pdz entry into a relative path, or returns null if
+   * the name would lead outside the output directory.
+   */
+  private static String entryPath(String name) {
+    StringBuilder path = new StringBuilder();
+    for(String part : name.split("/")) {
+      if(part.isEmpty() || part.equals(".") || part.equals("..") || part.indexOf('\\') != -1 || part.indexOf(':') != -1) {
+        return null;
+      }
+      if(path.length() > 0) {
+        path.append(File.separator);
+      }
+      path.append(part);
+    }
+    return path.toString();
+  }
+  
+  private static String describe(Throwable e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
+  
+  private static void collect(File dir, String prefix, List<String> paths) {
+    String[] names = dir.list();
+    if(names == null) return;
+    Arrays.sort(names);
+    for(String name : names) {
+      String path = prefix == null ? name : prefix + File.separator + name;
+      File file = new File(dir, name);
+      if(file.isDirectory()) {
+        collect(file, path, paths);
+      } else if(name.toLowerCase().endsWith(INPUT_EXTENSION) || PdzFile.isPdz(name)) {
+        paths.add(path);
+      }
+    }
+  }
+  
+}
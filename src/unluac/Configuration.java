@@ -12,6 +12,8 @@ public class Configuration {
     DECOMPILE,
     DISASSEMBLE,
     ASSEMBLE,
+    BATCH,
+    SERVE,
     HELP,
     VERSION,
   }
@@ -30,6 +32,20 @@ public class Configuration {
   public String typemap;
   public String opmap;
   public String output;
+  public int jobs;
+  public boolean lazy;
+  public String function;
+  public boolean timing;
+  public boolean stream;
+  public String cache_dir;
+  public long cache_size;
+  public boolean dedup;
+  public boolean profile;
+  public int profile_top;
+  public String profile_json;
+  public Registry registry;
+  public long budget_time;
+  public long budget_memory;
   
   public Configuration() {
     rawstring = false;
@@ -39,6 +55,20 @@ public class Configuration {
     luaj = false;
     opmap = null;
     output = null;
+    jobs = 1;
+    lazy = false;
+    function = null;
+    timing = false;
+    stream = false;
+    cache_dir = null;
+    cache_size = 256L << 20;
+    dedup = false;
+    profile = false;
+    profile_top = 20;
+    profile_json = null;
+    registry = new Registry();
+    budget_time = 0;
+    budget_memory = 0;
   }
   
   public Configuration(Configuration other) {
@@ -46,8 +76,24 @@ public class Configuration {
     mode = other.mode;
     variable = other.variable;
     strict_scope = other.strict_scope;
+    luaj = other.luaj;
+    typemap = other.typemap;
     opmap = other.opmap;
     output = other.output;
+    jobs = other.jobs;
+    lazy = other.lazy;
+    function = other.function;
+    timing = other.timing;
+    stream = other.stream;
+    cache_dir = other.cache_dir;
+    cache_size = other.cache_size;
+    dedup = other.dedup;
+    profile = other.profile;
+    profile_top = other.profile_top;
+    profile_json = other.profile_json;
+    registry = other.registry;
+    budget_time = other.budget_time;
+    budget_memory = other.budget_memory;
   }
   
   public Output getOutput() {
@@ -59,7 +105,7 @@ public class Configuration {
         return null;
       }
     } else {
-      return new Output();
+      return new Output(new FileOutputProvider(System.out, false));
     }
   }
   
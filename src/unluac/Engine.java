@@ -0,0 +1,263 @@
+package unluac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import unluac.UnluacException.Stage;
+import unluac.assemble.Assembler;
+import unluac.assemble.AssemblerException;
+import unluac.decompile.AppendableOutputProvider;
+import unluac.decompile.Decompiler;
+import unluac.decompile.Disassembler;
+import unluac.decompile.FileOutputProvider;
+import unluac.decompile.Output;
+import unluac.decompile.OutputProvider;
+import unluac.parse.LFunction;
+
+/**
+ * Decompiles, disassembles and assembles chunks held in memory, for use as a
+ * library. An engine keeps a copy of its configuration and nothing else, so
+ * one engine can be shared by any number of threads; the Lua versions and
+ * type and opcode maps it uses are created once and kept by the engine's own
+ * {@link Registry} for every call.
+ * Failures are reported by {@link UnluacException}, never by exiting.
+ * <p>
+ * Each call runs on the calling thread, so the jobs option is ignored, as
+ * are the options for the output file and the command line modes.
+ */
+public class Engine {
+
+  private final Configuration config;
+  
+  public Engine() throws UnluacException {
+    this(new Configuration());
+  }
+  
+  /**
+   * Creates an engine with a copy of the given configuration. The Lua
+   * versions are looked up and the type map, if any, is read now, so that a
+   * mistake in it is reported here rather than by the first call.
+   */
+  public Engine(Configuration config) throws UnluacException {
+    this.config = new Configuration(config);
+    this.config.registry = new Registry();
+    try {
+      for(int minor = -1; minor <= 4; minor++) {
+        Version.getVersion(this.config, 5, minor);
+      }
+      if(this.config.typemap != null) {
+        this.config.registry.getTypeMap(this.config.typemap);
+      }
+    } catch(IOException e) {
+      throw new UnluacException(Stage.CONFIGURATION, e);
+    } catch(RuntimeException e) {
+      throw new UnluacException(Stage.CONFIGURATION, e);
+    }
+  }
+  
+  /**
+   * Decompiles and disassembles the given chunk a number of times, throwing
+   * the output away, so that the code involved has been loaded and compiled
+   * by the time of the first real call.
+   */
+  public void warmUp(byte[] chunk, int rounds) throws UnluacException {
+    LFunction main = parse(chunk);
+    for(int i = 0; i < rounds; i++) {
+      decompile(main);
+      disassemble(main);
+    }
+  }
+  
+  public LFunction parse(byte[] chunk) throws UnluacException {
+    return parse(ByteBuffer.wrap(chunk));
+  }
+  
+  /**
+   * Parses a chunk from the buffer's position to its limit, leaving the
+   * buffer itself as it is. A parsed chunk is not changed by decompiling or
+   * disassembling it, so it can be kept and used again, from any thread.
+   */
+  public LFunction parse(ByteBuffer chunk) throws UnluacException {
+    try {
+      return Main.buffer_to_function(chunk.duplicate(), config);
+    } catch(RuntimeException e) {
+      throw new UnluacException(Stage.PARSE, e);
+    } catch(StackOverflowError e) {
+      // such as a chunk whose functions nest too deeply
+      throw new UnluacException(Stage.PARSE, e);
+    }
+  }
+  
+  public CharSequence decompile(byte[] chunk) throws UnluacException {
+    return decompile(parse(chunk));
+  }
+  
+  public CharSequence decompile(ByteBuffer chunk) throws UnluacException {
+    return decompile(parse(chunk));
+  }
+  
+  public CharSequence decompile(LFunction main) throws UnluacException {
+    StringBuilder out = new StringBuilder();
+    try {
+      decompile(main, out);
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out;
+  }
+  
+  public void decompile(ByteBuffer chunk, Appendable out) throws UnluacException, IOException {
+    decompile(parse(chunk), out);
+  }
+  
+  /**
+   * Decompiles a parsed chunk, appending the source as it is printed. If
+   * decompiling fails, what was printed before the failure has still been
+   * appended.
+   */
+  public void decompile(LFunction main, Appendable out) throws UnluacException, IOException {
+    AppendableOutputProvider provider = new AppendableOutputProvider(out);
+    print(Stage.DECOMPILE, provider, decompiler(main));
+  }
+  
+  /**
+   * Decompiles a parsed chunk, writing exactly the bytes that the command
+   * line would write to a file. The stream is not closed.
+   */
+  public void decompile(LFunction main, OutputStream out) throws UnluacException, IOException {
+    FileOutputProvider provider = new FileOutputProvider(out, false);
+    print(Stage.DECOMPILE, provider, decompiler(main));
+  }
+  
+  private Task decompiler(final LFunction main) {
+    return new Task() {
+    
+      @Override
+      public void run(Output output) {
+        Decompiler d = new Decompiler(main, config, null);
+        if(config.stream) {
+          d.stream(output);
+        } else {
+          d.print(d.decompile(), output);
+        }
+      }
+    
+    };
+  }
+  
+  public CharSequence disassemble(byte[] chunk) throws UnluacException {
+    return disassemble(parse(chunk));
+  }
+  
+  public CharSequence disassemble(ByteBuffer chunk) throws UnluacException {
+    return disassemble(parse(chunk));
+  }
+  
+  public CharSequence disassemble(LFunction main) throws UnluacException {
+    StringBuilder out = new StringBuilder();
+    try {
+      disassemble(main, out);
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out;
+  }
+  
+  public void disassemble(ByteBuffer chunk, Appendable out) throws UnluacException, IOException {
+    disassemble(parse(chunk), out);
+  }
+  
+  public void disassemble(LFunction main, Appendable out) throws UnluacException, IOException {
+    AppendableOutputProvider provider = new AppendableOutputProvider(out);
+    print(Stage.DISASSEMBLE, provider, disassembler(main));
+  }
+  
+  public void disassemble(LFunction main, OutputStream out) throws UnluacException, IOException {
+    FileOutputProvider provider = new FileOutputProvider(out, false);
+    print(Stage.DISASSEMBLE, provider, disassembler(main));
+  }
+  
+  private Task disassembler(final LFunction main) {
+    return new Task() {
+    
+      @Override
+      public void run(Output output) {
+        new Disassembler(main).disassemble(output);
+      }
+    
+    };
+  }
+  
+  /**
+   * Assembles a listing as written by the disassembler and returns the chunk.
+   */
+  public byte[] assemble(CharSequence listing) throws UnluacException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      assemble(new ByteArrayInputStream(listing.toString().getBytes(StandardCharsets.UTF_8)), out);
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+  
+  /**
+   * Assembles the UTF-8 listing read from the stream, writing the chunk to
+   * the other stream. Neither stream is closed.
+   */
+  public void assemble(InputStream listing, OutputStream out) throws UnluacException, IOException {
+    Assembler a = new Assembler(config, listing, out);
+    try {
+      a.assemble();
+    } catch(AssemblerException e) {
+      throw new UnluacException(Stage.ASSEMBLE, e);
+    } catch(RuntimeException e) {
+      throw new UnluacException(Stage.ASSEMBLE, e);
+    } catch(StackOverflowError e) {
+      throw new UnluacException(Stage.ASSEMBLE, e);
+    }
+  }
+  
+  private static interface Task {
+  
+    public void run(Output output);
+  
+  }
+  
+  private static void print(Stage stage, OutputProvider provider, Task task) throws UnluacException, IOException {
+    Output output = new Output(provider);
+    try {
+      try {
+        task.run(output);
+      } finally {
+        output.finish();
+      }
+    } catch(RuntimeException e) {
+      IOException error = getError(provider);
+      if(error != null) throw error;
+      throw new UnluacException(stage, e);
+    } catch(StackOverflowError e) {
+      throw new UnluacException(stage, e);
+    }
+  }
+  
+  /**
+   * Returns the exception raised by the destination of the output, if any,
+   * as opposed to a failure of the task itself.
+   */
+  private static IOException getError(OutputProvider provider) {
+    if(provider instanceof AppendableOutputProvider) {
+      return ((AppendableOutputProvider) provider).getError();
+    } else if(provider instanceof FileOutputProvider) {
+      return ((FileOutputProvider) provider).getError();
+    } else {
+      return null;
+    }
+  }
+  
+}
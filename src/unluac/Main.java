@@ -4,28 +4,39 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import unluac.Configuration.Mode;
 import unluac.assemble.Assembler;
 import unluac.assemble.AssemblerException;
+import unluac.decompile.ControlFlowHandler;
 import unluac.decompile.Decompiler;
 import unluac.decompile.Disassembler;
 import unluac.decompile.FileOutputProvider;
 import unluac.decompile.Output;
+import unluac.decompile.Profiler;
+import unluac.decompile.expression.ClosureExpression;
 import unluac.parse.BHeader;
 import unluac.parse.LFunction;
 import unluac.util.FileUtils;
+import unluac.util.PdzFile;
 
 public class Main {
 
   public static String version = "1.2.3.530";
   
+  private static final String PDX_EXTENSION = ".pdx";
+  
   public static void main(String[] args) {
     String fn = null;
     Configuration config = new Configuration();
@@ -37,12 +48,55 @@ public class Main {
           config.rawstring = true;
         } else if(arg.equals("--luaj")) {
           config.luaj = true;
+        } else if(arg.equals("--timing")) {
+          config.timing = true;
+        } else if(arg.equals("--dedup")) {
+          config.dedup = true;
+        } else if(arg.equals("--profile")) {
+          config.profile = true;
+        } else if(arg.equals("--profile-top")) {
+          if(i + 1 < args.length) {
+            try {
+              config.profile_top = Integer.parseInt(args[i + 1]);
+            } catch(NumberFormatException e) {
+              config.profile_top = 0;
+            }
+            if(config.profile_top < 1) {
+              error("option \"" + arg + "\" requires a positive number", true);
+            }
+            config.profile = true;
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--profile-json")) {
+          if(i + 1 < args.length) {
+            config.profile_json = args[i + 1];
+            config.profile = true;
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--stream")) {
+          config.stream = true;
         } else if(arg.equals("--nodebug")) {
           config.variable = Configuration.VariableMode.NODEBUG;
         } else if(arg.equals("--disassemble")) {
           config.mode = Mode.DISASSEMBLE;
         } else if(arg.equals("--assemble")) {
           config.mode = Mode.ASSEMBLE;
+        } else if(arg.equals("--lazy")) {
+          config.lazy = true;
+        } else if(arg.equals("--function")) {
+          if(i + 1 < args.length) {
+            config.function = args[i + 1];
+            config.lazy = true;
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--serve")) {
+          config.mode = Mode.SERVE;
         } else if(arg.equals("--help")) {
           config.mode = Mode.HELP;
         } else if(arg.equals("--version")) {
@@ -54,6 +108,73 @@ public class Main {
           } else {
             error("option \"" + arg + "\" doesn't have an argument", true);
           }
+        } else if(arg.equals("--batch")) {
+          if(i + 2 < args.length) {
+            if(fn != null) {
+              error("too many arguments: " + args[i + 1], true);
+            }
+            config.mode = Mode.BATCH;
+            fn = args[i + 1];
+            config.output = args[i + 2];
+            i += 2;
+          } else {
+            error("option \"" + arg + "\" requires an input and an output directory", true);
+          }
+        } else if(arg.equals("--jobs")) {
+          if(i + 1 < args.length) {
+            try {
+              config.jobs = Integer.parseInt(args[i + 1]);
+            } catch(NumberFormatException e) {
+              config.jobs = 0;
+            }
+            if(config.jobs < 1) {
+              error("option \"" + arg + "\" requires a positive number", true);
+            }
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--cache-dir")) {
+          if(i + 1 < args.length) {
+            config.cache_dir = args[i + 1];
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--cache-size")) {
+          if(i + 1 < args.length) {
+            try {
+              config.cache_size = Long.parseLong(args[i + 1]) << 20;
+            } catch(NumberFormatException e) {
+              config.cache_size = 0;
+            }
+            if(config.cache_size <= 0) {
+              error("option \"" + arg + "\" requires a positive number", true);
+            }
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
+        } else if(arg.equals("--budget-time") || arg.equals("--budget-memory")) {
+          if(i + 1 < args.length) {
+            long budget;
+            try {
+              budget = Long.parseLong(args[i + 1]);
+            } catch(NumberFormatException e) {
+              budget = 0;
+            }
+            if(budget <= 0) {
+              error("option \"" + arg + "\" requires a positive number", true);
+            }
+            if(arg.equals("--budget-time")) {
+              config.budget_time = budget;
+            } else {
+              config.budget_memory = budget << 20;
+            }
+            i++;
+          } else {
+            error("option \"" + arg + "\" doesn't have an argument", true);
+          }
         } else if(arg.equals("--typemap")) {
           if(i + 1 < args.length) {
             config.typemap = args[i + 1];
@@ -77,7 +198,7 @@ public class Main {
         error("too many arguments: " + arg, true);
       }
     }
-    if(fn == null && config.mode != Mode.HELP && config.mode != Mode.VERSION) {
+    if(fn == null && config.mode != Mode.HELP && config.mode != Mode.VERSION && config.mode != Mode.SERVE) {
       error("no input file provided", true);
     } else {
       switch(config.mode) {
@@ -88,17 +209,74 @@ public class Main {
         System.out.println(version);
         break;
       case DECOMPILE: {
+        if(PdzFile.isPdz(fn) || fn.toLowerCase().endsWith(PDX_EXTENSION)) {
+          if(config.output == null) {
+            error("decompiling a .pdz or .pdx bundle requires an output directory", true);
+          }
+          if(config.function != null) {
+            error("option \"--function\" needs a single chunk", true);
+          }
+          Batch batch = new Batch(config, new File(fn), new File(config.output));
+          if(batch.run(System.out) > 0) {
+            System.exit(1);
+          }
+          break;
+        }
+        Profiler profiler = config.profile ? new Profiler() : null;
         LFunction lmain = null;
+        if(profiler != null) profiler.begin(Profiler.PARSE, null);
         try {
           lmain = file_to_function(fn, config);
         } catch(IOException e) {
           error(e.getMessage(), false);
+        } finally {
+          if(profiler != null) profiler.end();
+        }
+        lmain = select_function(lmain, config);
+        warnIfStripped(lmain);
+        Decompiler d = new Decompiler(lmain, profiler);
+        if(config.stream) {
+          Output output = config.getOutput();
+          try {
+            begin_function(d, output, config);
+            d.stream(output);
+            end_function(output, config);
+          } finally {
+            output.finish();
+          }
+          if(config.timing) {
+            print_pass_times(System.err, d.getPassTimes());
+          }
+          if(profiler != null) {
+            print_profile(profiler, config);
+          }
+          break;
+        }
+        Decompiler.State result;
+        if(config.jobs > 1) {
+          ExecutorService executor = Executors.newFixedThreadPool(config.jobs);
+          try {
+            result = d.decompile(executor);
+          } finally {
+            executor.shutdown();
+          }
+        } else {
+          result = d.decompile();
         }
-        Decompiler d = new Decompiler(lmain);
-        Decompiler.State result = d.decompile();
         Output output = config.getOutput();
-        d.print(result, output);
-        output.finish();
+        try {
+          begin_function(d, output, config);
+          d.print(result, output);
+          end_function(output, config);
+        } finally {
+          output.finish();
+        }
+        if(config.timing) {
+          print_pass_times(System.err, d.getPassTimes());
+        }
+        if(profiler != null) {
+          print_profile(profiler, config);
+        }
         break;
       }
       case DISASSEMBLE: {
@@ -108,10 +286,15 @@ public class Main {
         } catch(IOException e) {
           error(e.getMessage(), false);
         }
-        Disassembler d = new Disassembler(lmain);
+        LFunction function = select_function(lmain, config);
+        warnIfStripped(function);
+        Disassembler d = config.function != null ? Disassembler.forFunction(function) : new Disassembler(lmain);
         Output output = config.getOutput();
-        d.disassemble(output);
-        output.finish();
+        try {
+          d.disassemble(output);
+        } finally {
+          output.finish();
+        }
         break;
       }
       case ASSEMBLE: {
@@ -133,6 +316,22 @@ public class Main {
         }
         break;
       }
+      case BATCH: {
+        Batch batch = new Batch(config, new File(fn), new File(config.output));
+        int failed = batch.run(System.out);
+        if(failed > 0) {
+          System.exit(1);
+        }
+        break;
+      }
+      case SERVE: {
+        try {
+          new Server(config).run(System.in, System.out, System.err);
+        } catch(IOException e) {
+          error(e.getMessage(), false);
+        }
+        break;
+      }
       default:
         throw new IllegalStateException();
       }
@@ -156,13 +355,64 @@ public class Main {
     print_usage(System.out);
     System.out.println("Available options are:");
     System.out.println("  --assemble        assemble given disassembly listing");
+    System.out.println("  --batch <in> <out> decompile every .luac file under <in> into <out>");
+    System.out.println("  --budget-time <ms> print a function taking longer as commented disassembly");
+    System.out.println("  --budget-memory <mb> likewise for a function allocating more than <mb> megabytes");
+    System.out.println("  --cache-dir <dir>  reuse the text of unchanged functions stored in <dir>");
+    System.out.println("  --cache-size <mb> limit the cache directory to <mb> megabytes (default 256)");
+    System.out.println("  --dedup           in batch mode, decompile functions shared by several files once");
+    System.out.println("  --jobs <n>        use <n> threads (files in batch mode, nested functions otherwise)");
     System.out.println("  --disassemble     disassemble instead of decompile");
     System.out.println("  --nodebug         ignore debugging information in input file");
     System.out.println("  --typemap <file>  use type mapping specified in <file>");
     System.out.println("  --opmap <file>    use opcode mapping specified in <file>");
-    System.out.println("  --output <file>   output to <file> instead of stdout");
+    System.out.println("  --output <file>   output to <file> instead of stdout (a directory for .pdz/.pdx)");
     System.out.println("  --rawstring       copy string bytes directly to output");
     System.out.println("  --luaj            emulate Luaj's permissive parser");
+    System.out.println("  --profile         report time and allocation by phase and function");
+    System.out.println("  --profile-top <n> list the <n> slowest functions in the profile (default 20)");
+    System.out.println("  --profile-json <file> also write the whole profile to <file> as JSON");
+    System.out.println("  --function <path> only decompile or disassemble the function main/f0/... and its closures");
+    System.out.println("  --lazy            decode nested functions only when they are needed");
+    System.out.println("  --serve           answer requests framed on stdin until it is closed (see README)");
+    System.out.println("  --stream          print each top-level statement as soon as it is decompiled");
+    System.out.println("  --timing          report time spent in each control flow pass");
+  }
+  
+  /**
+   * Returns the function chosen with --function, which is decompiled or
+   * disassembled on its own, or the main function.
+   */
+  private static LFunction select_function(LFunction lmain, Configuration config) {
+    if(config.function == null) return lmain;
+    LFunction function = lmain.find(config.function);
+    if(function == null) {
+      error("no function " + config.function + " in the chunk", false);
+    }
+    return function;
+  }
+  
+  /**
+   * Opens a function chosen with --function as an anonymous function, so
+   * that its parameters are shown; its body is printed inside.
+   */
+  private static void begin_function(Decompiler d, Output out, Configuration config) {
+    if(config.function == null) return;
+    out.print("function");
+    ClosureExpression.printParameters(d, out, true);
+  }
+  
+  private static void end_function(Output out, Configuration config) {
+    if(config.function == null) return;
+    out.dedent();
+    out.print("end");
+    out.println();
+  }
+  
+  private static void warnIfStripped(LFunction lmain) {
+    if(lmain.isStripped()) {
+      System.err.println("Warning: This file was stripped when it was compiled.\nYou may need to edit it manually.");
+    }
   }
   
   private static void print_unluac_string(PrintStream out) {
@@ -173,18 +423,45 @@ public class Main {
     out.println("  usage: java -jar unluac.jar [options] <file>");
   }
   
-  private static LFunction file_to_function(String fn, Configuration config) throws IOException {
+  private static void print_pass_times(PrintStream out, long[] times) {
+    if(times == null) return;
+    long total = 0;
+    for(long time : times) total += time;
+    out.println("control flow passes:");
+    for(int i = 0; i < times.length; i++) {
+      out.println(String.format("  %-28s%10.3f ms", ControlFlowHandler.PASSES[i], times[i] / 1e6));
+    }
+    out.println(String.format("  %-28s%10.3f ms", "total", total / 1e6));
+  }
+  
+  private static void print_profile(Profiler profiler, Configuration config) {
+    profiler.report(System.err, config.profile_top);
+    if(config.profile_json != null) {
+      try {
+        PrintStream out = new PrintStream(new FileOutputStream(config.profile_json), false, "UTF-8");
+        try {
+          profiler.writeJson(out);
+        } finally {
+          out.close();
+        }
+      } catch(IOException e) {
+        error(e.getMessage(), false);
+      }
+    }
+  }
+  
+  /**
+   * Parses a compiled chunk from a file. The file is mapped read-only rather
+   * than copied onto the heap, so large chunks cost no more than the parsed
+   * functions themselves.
+   */
+  public static LFunction file_to_function(String fn, Configuration config) throws IOException {
     RandomAccessFile file = null;
     try {
       file = new RandomAccessFile(fn, "r");
-      ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-      int len = (int) file.length();
       FileChannel in = file.getChannel();
-      while(len > 0) len -= in.read(buffer);
-      buffer.rewind();
-      BHeader header = new BHeader(buffer, config);
-      return header.main;
+      MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      return buffer_to_function(buffer, config);
     } finally {
       if(file != null) {
         file.close();
@@ -192,13 +469,51 @@ public class Main {
     }
   }
   
+  /**
+   * Parses a compiled chunk held in memory.
+   */
+  public static LFunction bytes_to_function(byte[] data, Configuration config) {
+    return buffer_to_function(ByteBuffer.wrap(data), config);
+  }
+  
+  /**
+   * Parses a compiled chunk read to the end of the given stream. The stream is
+   * not closed.
+   */
+  public static LFunction stream_to_function(InputStream in, Configuration config) throws IOException {
+    byte[] data = new byte[Math.max(in.available(), 4096)];
+    int len = 0;
+    while(true) {
+      if(len == data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      int n = in.read(data, len, data.length - len);
+      if(n < 0) break;
+      len += n;
+    }
+    return buffer_to_function(ByteBuffer.wrap(data, 0, len), config);
+  }
+  
+  /**
+   * Parses a compiled chunk from the buffer's position to its limit. The buffer
+   * may be a read-only view, such as a mapped file or a slice of one.
+   */
+  public static LFunction buffer_to_function(ByteBuffer buffer, Configuration config) {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    BHeader header = new BHeader(buffer, config);
+    return header.main;
+  }
+  
   public static void decompile(String in, String out, Configuration config) throws IOException {
     LFunction lmain = file_to_function(in, config);
     Decompiler d = new Decompiler(lmain);
     Decompiler.State result = d.decompile();
     Output output = new Output(new FileOutputProvider(new FileOutputStream(out)));
-    d.print(result, output);
-    output.finish();
+    try {
+      d.print(result, output);
+    } finally {
+      output.finish();
+    }
   }
   
   public static void assemble(String in, String out) throws IOException, AssemblerException {
@@ -0,0 +1,109 @@
+package unluac;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import unluac.decompile.DecompileCache;
+import unluac.decompile.OpcodeMap;
+import unluac.decompile.TypeMap;
+import unluac.parse.BHeader;
+
+/**
+ * The Lua versions, the type and opcode maps and the decompile caches of one
+ * run, created once and shared by every chunk of the run. A configuration and its copies share a
+ * registry, while each {@link Engine} starts its own, so nothing outlives the
+ * engine. A map file is read again if it has changed since it was read.
+ */
+public class Registry {
+
+  private static class Loaded<T> {
+  
+    final T map;
+    final long modified;
+    final long length;
+    
+    Loaded(T map, long modified, long length) {
+      this.map = map;
+      this.modified = modified;
+      this.length = length;
+    }
+    
+    boolean isCurrent(File file) {
+      return file.lastModified() == modified && file.length() == length;
+    }
+  
+  }
+  
+  private final Map<String, Version> versions = new HashMap<String, Version>();
+  private final Map<String, Loaded<TypeMap>> typemaps = new HashMap<String, Loaded<TypeMap>>();
+  private final Map<Version, Map<String, Loaded<OpcodeMap>>> opmaps = new HashMap<Version, Map<String, Loaded<OpcodeMap>>>();
+  private final Map<String, DecompileCache> caches = new HashMap<String, DecompileCache>();
+  
+  /**
+   * Returns the description of the given Lua version, which only depends on
+   * the configuration's luaj flag.
+   */
+  public synchronized Version getVersion(Configuration config, int major, int minor) {
+    String key = major + "." + minor + (config.luaj ? " luaj" : "");
+    Version version = versions.get(key);
+    if(version == null) {
+      version = Version.create(config, major, minor);
+      versions.put(key, version);
+    }
+    return version;
+  }
+  
+  /**
+   * Returns the type mapping in the given file.
+   */
+  public synchronized TypeMap getTypeMap(String filename) throws IOException {
+    File file = new File(filename);
+    Loaded<TypeMap> loaded = typemaps.get(filename);
+    if(loaded == null || !loaded.isCurrent(file)) {
+      // looked at before reading, so that a change while reading is seen later
+      long modified = file.lastModified();
+      long length = file.length();
+      loaded = new Loaded<TypeMap>(BHeader.loadTypeMap(filename), modified, length);
+      typemaps.put(filename, loaded);
+    }
+    return loaded.map;
+  }
+  
+  /**
+   * Returns the opcode mapping in the given file, with op names as spelled
+   * in the given version.
+   */
+  public synchronized OpcodeMap getOpcodeMap(String filename, Version version) throws IOException {
+    Map<String, Loaded<OpcodeMap>> versionmaps = opmaps.get(version);
+    if(versionmaps == null) {
+      versionmaps = new HashMap<String, Loaded<OpcodeMap>>();
+      opmaps.put(version, versionmaps);
+    }
+    File file = new File(filename);
+    Loaded<OpcodeMap> loaded = versionmaps.get(filename);
+    if(loaded == null || !loaded.isCurrent(file)) {
+      long modified = file.lastModified();
+      long length = file.length();
+      loaded = new Loaded<OpcodeMap>(BHeader.loadOpcodeMap(filename, version), modified, length);
+      versionmaps.put(filename, loaded);
+    }
+    return loaded.map;
+  }
+  
+  /**
+   * Returns the cache in the given directory with the given size limit,
+   * opening it the first time it is asked for.
+   */
+  public synchronized DecompileCache getCache(File dir, long limit) throws IOException {
+    String key = dir.getCanonicalPath() + File.pathSeparator + limit;
+    DecompileCache cache = caches.get(key);
+    if(cache == null) {
+      cache = DecompileCache.create(dir, limit);
+      caches.put(key, cache);
+    }
+    return cache;
+  }
+  
+}
@@ -0,0 +1,352 @@
+package unluac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unluac.parse.LFunction;
+
+/**
+ * Serves decompile, disassemble and assemble requests over standard input and
+ * output, so that tools which need many small jobs keep one JVM warm instead
+ * of starting a new one each time. Requests are handled concurrently by a
+ * pool of workers and may be answered out of order. Only a few requests wait
+ * for a worker at a time; when they are all busy, the reading thread handles
+ * the next request itself, so a client that sends faster than they finish is
+ * held back rather than filling the memory.
+ * <p>
+ * Every message is a frame: a 4 byte big-endian length followed by that many
+ * bytes. A request frame holds a 4 byte id chosen by the client, a 1 byte
+ * operation ('d' to decompile, 's' to disassemble, 'a' to assemble or 'm'
+ * for metrics), the options as a 2 byte length and that many bytes of ASCII
+ * separated by spaces, and the input, which is the rest of the frame. The
+ * options are those of the command line that apply to one chunk. A response
+ * frame holds the request's id, a 1 byte status (0 for success, 1 for
+ * failure) and the output, or the error message on failure. A request that
+ * is malformed or larger than {@link #MAX_FRAME} is skipped and answered as a
+ * failure under its id (0 if it is too short to have one). The server stops
+ * when its input ends, after answering the requests it has read, or when a
+ * length is negative, since the frames can no longer be told apart.
+ */
+public class Server {
+
+  public static final byte DECOMPILE = 'd';
+  public static final byte DISASSEMBLE = 's';
+  public static final byte ASSEMBLE = 'a';
+  public static final byte METRICS = 'm';
+  
+  public static final byte OK = 0;
+  public static final byte FAILED = 1;
+  
+  /* The largest request frame that is read, in bytes. */
+  public static final int MAX_FRAME = 1 << 28;
+  
+  /* The number of most recent latencies kept for the percentiles. */
+  private static final int WINDOW = 1024;
+  
+  /* The number of requests read ahead of the workers, per worker. */
+  private static final int QUEUED = 2;
+  
+  /* The number of engines kept for the options seen most recently. */
+  private static final int ENGINES = 32;
+  
+  private final Configuration config;
+  @SuppressWarnings("serial")
+  private final Map<String, Engine> engines = new LinkedHashMap<String, Engine>(16, 0.75f, true) {
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Engine> eldest) {
+      return size() > ENGINES;
+    }
+    
+  };
+  
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final long[] latencies = new long[WINDOW];
+  private long recorded;
+  private long maximum;
+  
+  private ThreadPoolExecutor executor;
+  
+  public Server(Configuration config) {
+    this.config = new Configuration(config);
+  }
+  
+  /**
+   * Reads requests until the input ends and writes a response to each. The
+   * final metrics are printed to the log.
+   */
+  public void run(InputStream input, OutputStream output, PrintStream log) throws IOException {
+    int workers = config.jobs > 1 ? config.jobs : Runtime.getRuntime().availableProcessors();
+    executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(workers * QUEUED), new ThreadPoolExecutor.CallerRunsPolicy());
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    try {
+      while(true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch(EOFException e) {
+          break;
+        }
+        if(length < 0) {
+          throw new IOException("bad request frame length " + length);
+        }
+        final long start = System.nanoTime();
+        if(length > MAX_FRAME) {
+          int id = in.readInt();
+          skipFully(in, length - 4);
+          reject(out, id, "request of " + length + " bytes is larger than " + MAX_FRAME, start);
+          continue;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        final Request request;
+        try {
+          request = new Request(frame);
+        } catch(IOException e) {
+          int id = length >= 4 ? new DataInputStream(new ByteArrayInputStream(frame)).readInt() : 0;
+          reject(out, id, "malformed request of " + length + " bytes", start);
+          continue;
+        }
+        inFlight.incrementAndGet();
+        executor.execute(new Runnable() {
+        
+          @Override
+          public void run() {
+            try {
+              respond(out, request, start);
+            } finally {
+              inFlight.decrementAndGet();
+            }
+          }
+        
+        });
+      }
+    } finally {
+      executor.shutdown();
+      try {
+        while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized(out) {
+        out.flush();
+      }
+      log.print(getMetrics());
+    }
+  }
+  
+  private static class Request {
+  
+    final int id;
+    final byte operation;
+    final String options;
+    final byte[] data;
+    
+    Request(byte[] frame) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+      id = in.readInt();
+      operation = in.readByte();
+      int length = in.readUnsignedShort();
+      if(length > frame.length - 7) {
+        throw new IOException("options run past the end of the request");
+      }
+      byte[] options = new byte[length];
+      in.readFully(options);
+      this.options = new String(options, StandardCharsets.US_ASCII);
+      data = Arrays.copyOfRange(frame, 7 + options.length, frame.length);
+    }
+  
+  }
+  
+  /**
+   * Reads and discards bytes; skipping is not supported by every stream, such
+   * as a pipe.
+   */
+  private static void skipFully(DataInputStream in, int count) throws IOException {
+    byte[] buffer = new byte[Math.min(count, 1 << 16)];
+    while(count > 0) {
+      int n = Math.min(count, buffer.length);
+      in.readFully(buffer, 0, n);
+      count -= n;
+    }
+  }
+  
+  private void reject(DataOutputStream out, int id, String message, long start) {
+    write(out, id, FAILED, message.getBytes(StandardCharsets.UTF_8));
+    record(System.nanoTime() - start, false);
+  }
+  
+  private void respond(DataOutputStream out, Request request, long start) {
+    byte status = OK;
+    byte[] result;
+    try {
+      result = handle(request);
+    } catch(UnluacException e) {
+      status = FAILED;
+      result = e.getMessage().getBytes(StandardCharsets.UTF_8);
+    } catch(IOException e) {
+      status = FAILED;
+      result = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+    } catch(RuntimeException e) {
+      status = FAILED;
+      result = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+    } catch(Error e) {
+      // such as a stack overflow on a deeply nested function; the client
+      // is still owed an answer, and the worker carries on
+      status = FAILED;
+      result = e.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    write(out, request.id, status, result);
+    record(System.nanoTime() - start, status == OK);
+  }
+  
+  private static void write(DataOutputStream out, int id, byte status, byte[] result) {
+    try {
+      synchronized(out) {
+        out.writeInt(5 + result.length);
+        out.writeInt(id);
+        out.writeByte(status);
+        out.write(result);
+        out.flush();
+      }
+    } catch(IOException e) {
+      // the client has gone; the input will end too
+    }
+  }
+  
+  private byte[] handle(Request request) throws UnluacException, IOException {
+    if(request.operation == METRICS) {
+      return getMetrics().getBytes(StandardCharsets.UTF_8);
+    }
+    Engine engine = getEngine(request.options);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, request.data.length * 4));
+    switch(request.operation) {
+      case DECOMPILE: {
+        LFunction main = engine.parse(request.data);
+        engine.decompile(main, out);
+        break;
+      }
+      case DISASSEMBLE: {
+        LFunction main = engine.parse(request.data);
+        engine.disassemble(main, out);
+        break;
+      }
+      case ASSEMBLE:
+        engine.assemble(new ByteArrayInputStream(request.data), out);
+        break;
+      default:
+        throw new IllegalStateException("unknown operation " + (char) request.operation);
+    }
+    return out.toByteArray();
+  }
+  
+  /**
+   * Returns the engine for the given options, creating it the first time
+   * they are seen. Only the most recently used engines are kept, along with
+   * the maps they have read, so a client naming many map files does not make
+   * the server grow.
+   */
+  private Engine getEngine(String options) throws UnluacException {
+    Engine engine;
+    synchronized(engines) {
+      engine = engines.get(options);
+    }
+    if(engine == null) {
+      Configuration config = new Configuration(this.config);
+      String[] args = options.trim().isEmpty() ? new String[0] : options.trim().split("\\s+");
+      for(int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if(arg.equals("--rawstring")) {
+          config.rawstring = true;
+        } else if(arg.equals("--luaj")) {
+          config.luaj = true;
+        } else if(arg.equals("--nodebug")) {
+          config.variable = Configuration.VariableMode.NODEBUG;
+        } else if(arg.equals("--stream")) {
+          config.stream = true;
+        } else if((arg.equals("--typemap") || arg.equals("--opmap")) && i + 1 < args.length) {
+          if(arg.equals("--typemap")) {
+            config.typemap = args[++i];
+          } else {
+            config.opmap = args[++i];
+          }
+        } else {
+          throw new IllegalStateException("unsupported option: " + arg);
+        }
+      }
+      engine = new Engine(config);
+      synchronized(engines) {
+        Engine existing = engines.get(options);
+        if(existing != null) {
+          engine = existing;
+        } else {
+          engines.put(options, engine);
+        }
+      }
+    }
+    return engine;
+  }
+  
+  private synchronized void record(long latency, boolean ok) {
+    served.incrementAndGet();
+    if(!ok) failed.incrementAndGet();
+    latencies[(int) (recorded++ % WINDOW)] = latency;
+    maximum = Math.max(maximum, latency);
+  }
+  
+  /**
+   * Returns the metrics of the server as lines of text: the requests served
+   * and failed, the ones waiting for a worker and in progress, and the
+   * latency percentiles of the most recent requests, from the time a request
+   * was read to the time its response was written.
+   */
+  public String getMetrics() {
+    long[] window;
+    long max;
+    synchronized(this) {
+      window = Arrays.copyOf(latencies, (int) Math.min(recorded, WINDOW));
+      max = maximum;
+    }
+    Arrays.sort(window);
+    StringBuilder b = new StringBuilder();
+    b.append("served ").append(served.get()).append('\n');
+    b.append("failed ").append(failed.get()).append('\n');
+    b.append("queued ").append(executor != null ? executor.getQueue().size() : 0).append('\n');
+    b.append("in_flight ").append(inFlight.get()).append('\n');
+    b.append(String.format(Locale.ROOT, "latency_p50_ms %.3f%n", percentile(window, 50) / 1e6));
+    b.append(String.format(Locale.ROOT, "latency_p90_ms %.3f%n", percentile(window, 90) / 1e6));
+    b.append(String.format(Locale.ROOT, "latency_p99_ms %.3f%n", percentile(window, 99) / 1e6));
+    b.append(String.format(Locale.ROOT, "latency_max_ms %.3f%n", max / 1e6));
+    return b.toString();
+  }
+  
+  private static long percentile(long[] sorted, int percent) {
+    if(sorted.length == 0) return 0;
+    int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+  
+}
@@ -0,0 +1,38 @@
+package unluac;
+
+/**
+ * Reports that a chunk or listing could not be handled by an {@link Engine},
+ * and at which stage. The cause is the error raised by the parser, decompiler
+ * or assembler.
+ */
+@SuppressWarnings("serial")
+public class UnluacException extends Exception {
+
+  public enum Stage {
+    CONFIGURATION,
+    PARSE,
+    DECOMPILE,
+    DISASSEMBLE,
+    ASSEMBLE,
+  }
+  
+  private final Stage stage;
+  
+  UnluacException(Stage stage, Throwable cause) {
+    super(describe(stage, cause), cause);
+    this.stage = stage;
+  }
+  
+  public Stage getStage() {
+    return stage;
+  }
+  
+  private static String describe(Stage stage, Throwable cause) {
+    String message = cause.getMessage();
+    if(message == null || message.isEmpty()) {
+      message = cause.getClass().getSimpleName();
+    }
+    return stage.name().toLowerCase() + " failed: " + message;
+  }
+  
+}
@@ -14,7 +14,17 @@ import unluac.parse.LUpvalueType;
 
 public class Version {
 
+  /**
+   * Returns the shared description of the given Lua version. A version is
+   * immutable and only depends on the configuration's luaj flag, so every
+   * chunk of the same version in a run reuses one instance, kept by the
+   * configuration's {@link Registry}, along with its opcode and type maps.
+   */
   public static Version getVersion(Configuration config, int major, int minor) {
+    return config.registry.getVersion(config, major, minor);
+  }
+  
+  static Version create(Configuration config, int major, int minor) {
     return new Version(config, major, minor);
   }
   
@@ -734,11 +734,7 @@ class AssemblerChunk {
     LUpvalue[] upvalues = new LUpvalue[function.upvalues.size()];
     i = 0;
     for(AssemblerUpvalue upvalue : function.upvalues) {
-      LUpvalue lup = new LUpvalue();
-      lup.bname = convert_string(header, upvalue.name);
-      lup.idx = upvalue.index;
-      lup.instack = upvalue.instack;
-      upvalues[i++] = lup;
+      upvalues[i++] = new LUpvalue(upvalue.instack, upvalue.index, 0, convert_string(header, upvalue.name), null);
     }
     LFunction[] functions = new LFunction[function.children.size()];
     i = 0;
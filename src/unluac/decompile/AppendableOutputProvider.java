@@ -0,0 +1,112 @@
+package unluac.decompile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends output to any Appendable, such as a StringBuilder or a Writer. The
+ * output is made of the bytes that would be written to a file, so they are
+ * decoded as UTF-8; bytes that are not valid UTF-8, as copied by the
+ * rawstring option, become replacement characters.
+ */
+public class AppendableOutputProvider implements OutputProvider {
+
+  private static final int BUFFER_SIZE = 1 << 13;
+  
+  private final Appendable out;
+  private final String eol;
+  private final CharsetDecoder decoder;
+  private final ByteBuffer bytes;
+  private final CharBuffer chars;
+  private IOException error;
+  
+  public AppendableOutputProvider(Appendable out) {
+    this.out = out;
+    eol = System.lineSeparator();
+    decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    chars = CharBuffer.allocate(BUFFER_SIZE);
+  }
+  
+  /**
+   * Returns the exception thrown by the Appendable, if any. Printing fails
+   * with an unchecked exception when the Appendable does, so the caller can
+   * recover the original one here.
+   */
+  public IOException getError() {
+    return error;
+  }
+  
+  @Override
+  public void print(String s) {
+    int length = s.length();
+    for(int i = 0; i < length; i++) {
+      int c = s.charAt(i);
+      if(c < 0 || c > 255) throw new IllegalStateException();
+      print((byte) c);
+    }
+  }
+  
+  @Override
+  public void print(byte b) {
+    if(!bytes.hasRemaining()) decode(false);
+    bytes.put(b);
+  }
+  
+  @Override
+  public void print(byte[] bytes, int offset, int length) {
+    while(length > 0) {
+      if(!this.bytes.hasRemaining()) decode(false);
+      int n = Math.min(length, this.bytes.remaining());
+      this.bytes.put(bytes, offset, n);
+      offset += n;
+      length -= n;
+    }
+  }
+  
+  @Override
+  public void println() {
+    print(eol);
+  }
+  
+  @Override
+  public void finish() {
+    decode(true);
+    decoder.flush(chars);
+    append();
+    decoder.reset();
+  }
+  
+  /**
+   * Decodes the buffered bytes and appends them. A sequence split at the end
+   * of the buffer is kept for the next time, unless this is the end.
+   */
+  private void decode(boolean end) {
+    bytes.flip();
+    while(true) {
+      CoderResult result = decoder.decode(bytes, chars, end);
+      append();
+      if(!result.isOverflow()) break;
+    }
+    bytes.compact();
+  }
+  
+  private void append() {
+    chars.flip();
+    try {
+      out.append(chars);
+    } catch(IOException e) {
+      error = e;
+      throw new IllegalStateException(e.getMessage());
+    }
+    chars.clear();
+  }
+  
+}
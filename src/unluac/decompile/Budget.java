@@ -0,0 +1,112 @@
+package unluac.decompile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import unluac.Configuration;
+
+/**
+ * Limits the wall time and the memory spent decompiling one function. The
+ * analysis calls {@link #check} as it goes, and once a limit has been passed
+ * the check throws {@link Exceeded}; the decompiler then prints the
+ * function's disassembly in place of its source.
+ * <p>
+ * Memory is estimated by the bytes allocated on the decompiling thread, so
+ * garbage counts as well as what is kept. Without support for measuring it
+ * in the JVM, only the time is limited.
+ */
+public class Budget {
+
+  /**
+   * Thrown by {@link Budget#check} to abandon the function.
+   */
+  @SuppressWarnings("serial")
+  public static class Exceeded extends RuntimeException {
+  
+    Exceeded(String message) {
+      super(message);
+    }
+  
+  }
+  
+  /* The number of checks between readings of the clock, which cost more. */
+  private static final int INTERVAL = 256;
+  
+  private static final com.sun.management.ThreadMXBean allocation = allocationBean();
+  
+  private final long time;
+  private final long memory;
+  private final long thread;
+  private long start;
+  private long allocated;
+  private long pausedTime;
+  private long pausedAllocated;
+  private int countdown;
+  
+  /**
+   * Starts the budget of a function on the calling thread, or returns null
+   * if the configuration sets no limit.
+   */
+  public static Budget start(Configuration config) {
+    long memory = allocation != null ? config.budget_memory : 0;
+    if(config.budget_time <= 0 && memory <= 0) return null;
+    return new Budget(config.budget_time * 1000000L, memory);
+  }
+  
+  private Budget(long time, long memory) {
+    this.time = time;
+    this.memory = memory;
+    thread = Thread.currentThread().getId();
+    start = System.nanoTime();
+    allocated = allocatedBytes();
+    countdown = INTERVAL;
+  }
+  
+  /**
+   * Throws {@link Exceeded} if the function has run out of time or memory.
+   * Only one call in {@link #INTERVAL} reads the clocks.
+   */
+  public void check() {
+    if(--countdown > 0) return;
+    countdown = INTERVAL;
+    if(time > 0 && System.nanoTime() - start > time) {
+      throw new Exceeded("over the time budget of " + time / 1000000L + " ms");
+    }
+    if(memory > 0 && allocatedBytes() - allocated > memory) {
+      throw new Exceeded("over the memory budget of " + (memory >> 20) + " MB");
+    }
+  }
+  
+  /**
+   * Stops counting, while the function does work that is not its own, such
+   * as decompiling its closures as they are printed.
+   */
+  public void pause() {
+    pausedTime = System.nanoTime();
+    pausedAllocated = allocatedBytes();
+  }
+  
+  public void resume() {
+    start += System.nanoTime() - pausedTime;
+    allocated += allocatedBytes() - pausedAllocated;
+  }
+  
+  private long allocatedBytes() {
+    return allocation != null ? allocation.getThreadAllocatedBytes(thread) : 0;
+  }
+  
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+      if(allocation.isThreadAllocatedMemorySupported()) {
+        if(!allocation.isThreadAllocatedMemoryEnabled()) {
+          allocation.setThreadAllocatedMemoryEnabled(true);
+        }
+        return allocation;
+      }
+    }
+    return null;
+  }
+  
+}
@@ -3,25 +3,48 @@ package unluac.decompile;
 import unluac.Version;
 import unluac.parse.LFunction;
 
+/**
+ * The instructions of a function, decoded once into one column per field so
+ * that the analyses read plain array elements. Use {@link LFunction#getDecoded}
+ * to share the decoded form between the passes that look at a function.
+ */
 public class Code {
   
+  private static final int NO_TARGET = Integer.MIN_VALUE;
+  
   private final CodeExtract extractor;
-  private final OpcodeMap map;
   private final int[] code;
-  private final boolean[] extraByte;
+  private final Op[] ops;
+  private final int[] a;
+  private final int[] b;
+  private final int[] c;
+  private final int[] bx;
+  private final int[] targets;
   private final boolean[] upvalue;
   public final int length;
   
   public Code(LFunction function) {
     this.code = function.code;
     this.length = code.length;
-    map = function.header.opmap;
+    OpcodeMap map = function.header.opmap;
     extractor = function.header.extractor;
-    extraByte = new boolean[length];
+    ops = new Op[length];
+    a = new int[length];
+    b = new int[length];
+    c = new int[length];
+    bx = new int[length];
+    targets = new int[length];
+    boolean extraByte = false;
     for(int i = 0; i < length; i++) {
-      int line = i + 1;
-      Op op = op(line);
-      extraByte[i] = op != null && op.hasExtraByte(codepoint(line), extractor);
+      int codepoint = code[i];
+      Op op = extraByte ? Op.EXTRABYTE : map.get(extractor.op.extract(codepoint));
+      ops[i] = op;
+      a[i] = extractor.A.extract(codepoint);
+      b[i] = extractor.B.extract(codepoint);
+      c[i] = extractor.C.extract(codepoint);
+      bx[i] = extractor.Bx.extract(codepoint);
+      targets[i] = op != null && op.hasJumpField() ? i + 2 + op.jumpField(codepoint, extractor) : NO_TARGET;
+      extraByte = op != null && op.hasExtraByte(codepoint, extractor);
     }
     upvalue = new boolean[length];
     if(function.header.version.upvaluedeclarationtype.get() == Version.UpvalueDeclarationType.INLINE) {
@@ -46,22 +69,11 @@ public class Code {
     return extractor;
   }
   
-  //public boolean reentered = false;
-  
   /**
    * Returns the operation indicated by the instruction at the given line.
    */
   public Op op(int line) {
-    /*if(!reentered) {
-      reentered = true;
-      System.out.println("line " + line + ": " + toString(line));
-      reentered = false;
-    }*/
-    if(line >= 2 && extraByte[line - 2]) {
-      return Op.EXTRABYTE;
-    } else {
-      return map.get(opcode(line));
-    }
+    return ops[line - 1];
   }
   
   public int opcode(int line) {
@@ -72,14 +84,14 @@ public class Code {
    * Returns the A field of the instruction at the given line.
    */
   public int A(int line) {
-    return extractor.A.extract(code[line - 1]);
+    return a[line - 1];
   }
   
   /**
    * Returns the C field of the instruction at the given line.
    */
   public int C(int line) {
-    return extractor.C.extract(code[line - 1]);
+    return c[line - 1];
   }
   
   /**
@@ -102,7 +114,7 @@ public class Code {
    * Returns the B field of the instruction at the given line.
    */
   public int B(int line) {
-    return extractor.B.extract(code[line - 1]);
+    return b[line - 1];
   }
   
   /**
@@ -124,7 +136,7 @@ public class Code {
    * Returns the Bx field (B extended) of the instruction at the given line.
    */
   public int Bx(int line) {
-    return extractor.Bx.extract(code[line - 1]);
+    return bx[line - 1];
   }
   
   /**
@@ -139,7 +151,9 @@ public class Code {
    * This field will be chosen automatically based on the opcode.
    */
   public int target(int line) {
-    return line + 1 + op(line).jumpField(codepoint(line), extractor);
+    int target = targets[line - 1];
+    if(target == NO_TARGET) throw new IllegalStateException();
+    return target;
   }
   
   public int register(int line) {
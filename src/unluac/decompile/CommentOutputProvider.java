@@ -0,0 +1,56 @@
+package unluac.decompile;
+
+/**
+ * Prints text as Lua line comments on another output, so that something
+ * other than source, such as a disassembly listing, can be placed among the
+ * decompiled code. Each line is indented as the output is.
+ */
+public class CommentOutputProvider implements OutputProvider {
+
+  private final Output out;
+  private boolean start = true;
+  
+  public CommentOutputProvider(Output out) {
+    this.out = out;
+  }
+  
+  private void start() {
+    if(start) {
+      out.print("-- ");
+      start = false;
+    }
+  }
+  
+  @Override
+  public void print(String s) {
+    start();
+    out.print(s);
+  }
+  
+  @Override
+  public void print(byte b) {
+    start();
+    out.print(b);
+  }
+  
+  @Override
+  public void print(byte[] bytes, int offset, int length) {
+    start();
+    out.print(bytes, offset, length);
+  }
+  
+  @Override
+  public void println() {
+    if(start) {
+      out.print("--");
+    }
+    out.println();
+    start = true;
+  }
+  
+  @Override
+  public void finish() {
+  
+  }
+  
+}
@@ -3,8 +3,10 @@ package unluac.decompile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import unluac.Version;
 import unluac.decompile.block.AlwaysLoop;
@@ -38,7 +40,27 @@ import unluac.util.Stack;
 
 public class ControlFlowHandler {
   
-  public static boolean verbose = false;
+  public static final boolean verbose = false;
+  
+  /**
+   * Names of the passes run by {@link #process}, in order; these index
+   * {@link Result#passTimes}.
+   */
+  public static final String[] PASSES = {
+    "find_reverse_targets",
+    "find_branches",
+    "combine_branches",
+    "resolve_lines",
+    "initialize_blocks",
+    "find_fixed_blocks",
+    "find_while_loops",
+    "find_repeat_loops",
+    "find_if_break",
+    "find_set_blocks",
+    "find_pseudo_goto_statements",
+    "find_do_blocks",
+    "sort_blocks",
+  };
   
   private static class Branch implements Comparable<Branch> {
     
@@ -94,17 +116,159 @@ public class ControlFlowHandler {
     public int[] resolved;
     public boolean[] labels;
     public List<Block> blocks;
+    public BlockIndex index;
+  }
+  
+  /**
+   * Answers "which blocks contain this line" without scanning every block.
+   * Blocks are only ever appended to {@code state.blocks}, so the index
+   * catches up with the list lazily; ranges live in a segment tree over the
+   * lines of the function and come back in list order, which the enclosing
+   * block searches depend on. A block whose range changes after it has been
+   * indexed must be passed to {@link #update}.
+   */
+  private static class BlockIndex {
+    
+    private final List<Block> blocks;
+    private final int size;
+    private final int[][] nodes;
+    private final int[] counts;
+    private final Map<Block, Integer> ids;
+    private final List<Break> breaks;
+    private int indexed;
+    private int[] found;
+    
+    public BlockIndex(List<Block> blocks, int length) {
+      this.blocks = blocks;
+      int size = 1;
+      while(size < length + 2) size <<= 1;
+      this.size = size;
+      nodes = new int[2 * size][];
+      counts = new int[2 * size];
+      ids = new IdentityHashMap<Block, Integer>();
+      breaks = new ArrayList<Break>();
+      indexed = 0;
+      found = new int[16];
+    }
+    
+    /**
+     * Returns the blocks containing the given line, in the order they were
+     * added.
+     */
+    public List<Block> containing(int line) {
+      sync();
+      List<Block> result = new ArrayList<Block>();
+      if(line < 0 || line >= size) {
+        for(Block block : blocks) {
+          if(block.contains(line)) result.add(block);
+        }
+        return result;
+      }
+      int n = 0;
+      for(int node = line + size; node >= 1; node >>= 1) {
+        int count = counts[node];
+        if(count > 0) {
+          if(n + count > found.length) found = Arrays.copyOf(found, Math.max(n + count, 2 * found.length));
+          System.arraycopy(nodes[node], 0, found, n, count);
+          n += count;
+        }
+      }
+      Arrays.sort(found, 0, n);
+      for(int i = 0; i < n; i++) {
+        if(i > 0 && found[i] == found[i - 1]) continue;
+        Block block = blocks.get(found[i]);
+        if(block.contains(line)) result.add(block);
+      }
+      return result;
+    }
+    
+    /**
+     * Returns true if a break statement lies within the given block's range.
+     */
+    public boolean containsBreak(Block block) {
+      sync();
+      for(int i = firstBreak(block.begin); i < breaks.size(); i++) {
+        Break b = breaks.get(i);
+        if(b.begin > block.end) break;
+        if(block.contains(b)) return true;
+      }
+      return false;
+    }
+    
+    /**
+     * Records the current range of a block whose bounds were changed. Stale
+     * ranges are harmless since every match is checked against the block.
+     */
+    public void update(Block block) {
+      Integer id = ids.get(block);
+      if(id != null) insert(block, id);
+    }
+    
+    private void sync() {
+      while(indexed < blocks.size()) {
+        Block block = blocks.get(indexed);
+        ids.put(block, indexed);
+        insert(block, indexed);
+        if(block instanceof Break) {
+          breaks.add(firstBreak(block.begin + 1), (Break) block);
+        }
+        indexed++;
+      }
+    }
+    
+    private int firstBreak(int begin) {
+      int lo = 0;
+      int hi = breaks.size();
+      while(lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if(breaks.get(mid).begin < begin) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+    
+    private void insert(Block block, int id) {
+      int lo = Math.max(block.begin, 0) + size;
+      int hi = Math.min(block.end, size) + size;
+      while(lo < hi) {
+        if((lo & 1) != 0) add(lo++, id);
+        if((hi & 1) != 0) add(--hi, id);
+        lo >>= 1;
+        hi >>= 1;
+      }
+    }
+    
+    private void add(int node, int id) {
+      int[] list = nodes[node];
+      if(list == null) {
+        list = nodes[node] = new int[4];
+      } else if(counts[node] == list.length) {
+        list = nodes[node] = Arrays.copyOf(list, 2 * list.length);
+      }
+      list[counts[node]++] = id;
+    }
+    
   }
   
   public static class Result {
     
-    public Result(State state) {
+    public Result(State state, long[] passTimes) {
       blocks = state.blocks;
       labels = state.labels;
+      this.passTimes = passTimes;
     }
     
     public List<Block> blocks;
     public boolean[] labels;
+    
+    /**
+     * Nanoseconds spent in each of {@link #PASSES}, or null unless timing
+     * was requested.
+     */
+    public long[] passTimes;
   }
   
   public static Result process(Decompiler d, Registers r) {
@@ -114,19 +278,34 @@ public class ControlFlowHandler {
     state.r = r;
     state.code = d.code;
     state.labels = new boolean[d.code.length + 1];
+    long[] times = d.getConfiguration().timing ? new long[PASSES.length] : null;
+    long mark = times != null ? System.nanoTime() : 0;
     find_reverse_targets(state);
+    mark = lap(times, 0, mark);
     find_branches(state);
+    mark = lap(times, 1, mark);
     combine_branches(state);
+    mark = lap(times, 2, mark);
     resolve_lines(state);
+    mark = lap(times, 3, mark);
     initialize_blocks(state);
+    mark = lap(times, 4, mark);
     find_fixed_blocks(state);
+    mark = lap(times, 5, mark);
     find_while_loops(state, d.declList);
+    mark = lap(times, 6, mark);
     find_repeat_loops(state);
+    mark = lap(times, 7, mark);
     find_if_break(state, d.declList);
+    mark = lap(times, 8, mark);
     find_set_blocks(state);
+    mark = lap(times, 9, mark);
     find_pseudo_goto_statements(state, d.declList);
+    mark = lap(times, 10, mark);
     find_do_blocks(state, d.declList);
+    mark = lap(times, 11, mark);
     Collections.sort(state.blocks);
+    lap(times, 12, mark);
     // DEBUG: print branches stuff
     /*
     Branch b = state.begin_branch;
@@ -136,7 +315,14 @@ public class ControlFlowHandler {
       b = b.next;
     }
     */
-    return new Result(state);
+    return new Result(state, times);
+  }
+  
+  private static long lap(long[] times, int pass, long mark) {
+    if(times == null) return 0;
+    long now = System.nanoTime();
+    times[pass] += now - mark;
+    return now;
   }
   
   private static void find_reverse_targets(State state) {
@@ -156,6 +342,7 @@ public class ControlFlowHandler {
     int[] resolved = new int[state.code.length + 1];
     Arrays.fill(resolved, -1);
     for(int line = 1; line <= state.code.length; line++) {
+      state.r.checkBudget();
       int r = line;
       Branch b = state.branches[line];
       while(b != null && b.type == Branch.Type.jump) {
@@ -340,6 +527,7 @@ public class ControlFlowHandler {
     for(int i = 0; i <= state.code.length; i++) state.finalsetbranches.add(null);
     boolean[] skip = new boolean[code.length + 1];
     for(int line = 1; line <= code.length; line++) {
+      state.r.checkBudget();
       if(!skip[line]) {
         switch(code.op(line)) {
           case EQ: case LT: case LE: {
@@ -450,12 +638,14 @@ public class ControlFlowHandler {
     
     b = state.end_branch;
     while(b != null) {
+      state.r.checkBudget();
       b = combine_left(state, b).previous;
     }
   }
   
   private static void initialize_blocks(State state) {
-    state.blocks = new LinkedList<Block>();
+    state.blocks = new ArrayList<Block>();
+    state.index = new BlockIndex(state.blocks, state.code.length);
   }
   
   private static void find_fixed_blocks(State state) {
@@ -470,6 +660,7 @@ public class ControlFlowHandler {
     
     Branch b = state.begin_branch;
     while(b != null) {
+      state.r.checkBudget();
       if(b.type == Branch.Type.jump) {
         int line = b.line;
         int target = b.targetFirst;
@@ -516,6 +707,7 @@ public class ControlFlowHandler {
     }
     
     for(int line = 1; line <= code.length; line++) {
+      state.r.checkBudget();
       switch(code.op(line)) {
         case FORPREP:
         case FORPREP54: {
@@ -609,6 +801,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch j = state.end_branch;
     while(j != null) {
+      state.r.checkBudget();
       if(j.type == Branch.Type.jump && j.targetFirst <= j.line && !splits_decl(j.targetFirst, j.targetFirst, j.line + 1, declList)) {
         int line = j.targetFirst;
         int loopback = line;
@@ -697,6 +890,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch b = state.begin_branch;
     while(b != null) {
+      state.r.checkBudget();
       if(is_conditional(b)) {
         if(b.targetSecond < b.targetFirst) {
           Block block = null;
@@ -799,7 +993,9 @@ public class ControlFlowHandler {
   
   private static void resolve_else(State state, Stack<Branch> stack, Stack<Branch> hanging, Stack<ElseEndBlock> elseStack, Branch top, Branch b, int tailTargetSecond) {
     while(!elseStack.isEmpty() && elseStack.peek().end == tailTargetSecond && elseStack.peek().begin >= top.targetFirst) {
-      elseStack.pop().end = b.line;
+      ElseEndBlock hangingElse = elseStack.pop();
+      hangingElse.end = b.line;
+      state.index.update(hangingElse);
     }
     
     Stack<Branch> replace = new Stack<Branch>();
@@ -890,6 +1086,7 @@ public class ControlFlowHandler {
     Stack<Branch> hangingResolver = new Stack<Branch>();
     
     while(b != null) {
+      state.r.checkBudget();
       while(resolve_if_stack(state, stack, b.line2) != null) {}
       
       while(!elseStack.isEmpty() && elseStack.peek().end <= b.line) {
@@ -1163,6 +1360,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch b = state.begin_branch;
     while(b != null) {
+      state.r.checkBudget();
       if(is_assignment(b) || b.type == Branch.Type.finalset) {
         if(b.finalset != null) {
           FinalSetCondition c = b.finalset;
@@ -1200,11 +1398,9 @@ public class ControlFlowHandler {
   
   private static Block enclosing_block(State state, int line) {
     Block enclosing = null;
-    for(Block block : state.blocks) {
-      if(block.contains(line)) {
-        if(enclosing == null || enclosing.contains(block)) {
-          enclosing = block;
-        }
+    for(Block block : state.index.containing(line)) {
+      if(enclosing == null || enclosing.contains(block)) {
+        enclosing = block;
       }
     }
     return enclosing;
@@ -1212,8 +1408,8 @@ public class ControlFlowHandler {
   
   private static Block enclosing_breakable_block(State state, int line) {
     Block enclosing = null;
-    for(Block block : state.blocks) {
-      if(block.contains(line) && block.breakable()) {
+    for(Block block : state.index.containing(line)) {
+      if(block.breakable()) {
         if(enclosing == null || enclosing.contains(block)) {
           enclosing = block;
         }
@@ -1224,8 +1420,8 @@ public class ControlFlowHandler {
   
   private static Block enclosing_unprotected_block(State state, int line) {
     Block enclosing = null;
-    for(Block block : state.blocks) {
-      if(block.contains(line) && block.isUnprotected()) {
+    for(Block block : state.index.containing(line)) {
+      if(block.isUnprotected()) {
         if(enclosing == null || enclosing.contains(block)) {
           enclosing = block;
         }
@@ -1237,11 +1433,13 @@ public class ControlFlowHandler {
   private static void find_pseudo_goto_statements(State state, Declaration[] declList) {
     Branch b = state.begin_branch;
     while(b != null) {
+      state.r.checkBudget();
       if(b.type == Branch.Type.jump && b.targetFirst > b.line) {
         int end = b.targetFirst;
+        List<Block> containing = state.index.containing(b.line);
         Block smallestEnclosing = null;
-        for(Block block : state.blocks) {
-          if(block.contains(b.line) && block.contains(end - 1)) {
+        for(Block block : containing) {
+          if(block.contains(end - 1)) {
             if(smallestEnclosing == null || smallestEnclosing.contains(block)) {
               smallestEnclosing = block;
             }
@@ -1250,8 +1448,8 @@ public class ControlFlowHandler {
         if(smallestEnclosing != null) {
           // Should always find the outer block at least...
           Block wrapping = null;
-          for(Block block : state.blocks) {
-            if(block != smallestEnclosing && smallestEnclosing.contains(block) && block.contains(b.line)) {
+          for(Block block : containing) {
+            if(block != smallestEnclosing && smallestEnclosing.contains(block)) {
               if(wrapping == null || block.contains(wrapping)) {
                 wrapping = block;
               }
@@ -1292,15 +1490,8 @@ public class ControlFlowHandler {
           if(breakable != null) {
             begin = Math.max(breakable.begin, begin);
           }
-          boolean containsBreak = false;
           OnceLoop loop = new OnceLoop(state.function, begin, end);
-          for(Block block : state.blocks) {
-            if(loop.contains(block) && block instanceof Break) {
-              containsBreak = true;
-              break;
-            }
-          }
-          if(containsBreak) {
+          if(state.index.containsBreak(loop)) {
             // TODO: close type
             state.blocks.add(new IfThenElseBlock(state.function, FixedCondition.TRUE, begin, b.line + 1, end, CloseType.NONE, -1));
             state.blocks.add(new ElseEndBlock(state.function, b.line + 1, end, CloseType.NONE, -1));
@@ -1330,6 +1521,7 @@ public class ControlFlowHandler {
   private static void find_do_blocks(State state, Declaration[] declList) {
     List<Block> newBlocks = new ArrayList<Block>();
     for(Block block : state.blocks) {
+      state.r.checkBudget();
       if(block.hasCloseLine() && block.getCloseLine() >= 1) {
         int closeLine = block.getCloseLine();
         Block enclosing = enclosing_block(state, closeLine);
@@ -1363,15 +1555,13 @@ public class ControlFlowHandler {
       int begin = decl.begin;
       if(!decl.forLoop && !decl.forLoopExplicit) {
         boolean needsDoEnd = true;
-        for(Block block : state.blocks) {
-          if(block.contains(decl.begin)) {
-            if(block.scopeEnd() == decl.end) {
-              block.useScope();
-              needsDoEnd = false;
-              break;
-            } else if(block.scopeEnd() < decl.end) {
-              begin = Math.min(begin, block.begin);
-            }
+        for(Block block : state.index.containing(decl.begin)) {
+          if(block.scopeEnd() == decl.end) {
+            block.useScope();
+            needsDoEnd = false;
+            break;
+          } else if(block.scopeEnd() < decl.end) {
+            begin = Math.min(begin, block.begin);
           }
         }
         if(needsDoEnd) {
@@ -1386,7 +1576,7 @@ public class ControlFlowHandler {
   }
   
   private static void strictScopeCheck(State state) {
-    if(state.function.header.config.strict_scope) {
+    if(state.d.getConfiguration().strict_scope) {
       throw new RuntimeException("Violation of strict scope rule");
     }
   }
@@ -1776,7 +1966,7 @@ public class ControlFlowHandler {
         return true;
       }
     }
-    return state.d.hasStatement(begin, end);
+    return state.d.hasStatement(begin, end, state.r.getBudget());
   }
   
   private static boolean is_statement(State state, int line) {
@@ -0,0 +1,496 @@
+package unluac.decompile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unluac.Configuration;
+import unluac.Main;
+import unluac.parse.LBoolean;
+import unluac.parse.LFunction;
+import unluac.parse.LLocal;
+import unluac.parse.LNumber;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+import unluac.parse.LUpvalue;
+
+/**
+ * An on-disk store of decompiled function bodies, keyed by a hash of
+ * everything that affects the printed text: the instructions, constants,
+ * local and upvalue names of the function and all of its nested functions,
+ * and the decompiler settings. Source line information is left out since it
+ * never reaches the output, so a function that only moved keeps its entry.
+ * Entries are evicted least recently used first once the directory grows
+ * past its size limit. A cache can also keep its entries in memory, which
+ * deduplicates the functions shared by the files of a corpus.
+ */
+public class DecompileCache {
+
+  private static final String SUFFIX = ".lua.cache";
+  
+  private static final Map<LFunction, byte[]> digests = new WeakHashMap<LFunction, byte[]>();
+  
+  /**
+   * Returns the cache for the configured directory, or null if none is set.
+   * The cache is shared by the run, along with its count of the directory's
+   * size, and is kept apart from those opened with another size limit.
+   */
+  public static DecompileCache open(Configuration config) {
+    if(config.cache_dir == null) return null;
+    File dir = new File(config.cache_dir);
+    if(!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalStateException("cannot create cache directory " + dir);
+    }
+    try {
+      return config.registry.getCache(dir, config.cache_size);
+    } catch(IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+  
+  /**
+   * Creates a cache in the given directory; {@link #open} is used instead so
+   * that a run keeps one count of the directory's size.
+   */
+  public static DecompileCache create(File dir, long limit) {
+    return new DecompileCache(dir, limit, false);
+  }
+  
+  /**
+   * Creates a cache that holds every entry in memory for as long as it is in
+   * use, for decompiling a corpus in which the same functions recur. Entries
+   * are read from and written to the configured directory as well, if any.
+   */
+  public static DecompileCache inMemory(Configuration config) {
+    File dir = null;
+    if(config.cache_dir != null) {
+      dir = new File(config.cache_dir);
+      if(!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IllegalStateException("cannot create cache directory " + dir);
+      }
+    }
+    return new DecompileCache(dir, config.cache_size, true);
+  }
+  
+  private final File dir;
+  private final long limit;
+  private long size;
+  private final Map<String, byte[]> memory;
+  
+  private final AtomicLong decompiled = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong uncached = new AtomicLong();
+  
+  private DecompileCache(File dir, long limit, boolean inMemory) {
+    this.dir = dir;
+    this.limit = limit;
+    size = 0;
+    if(dir != null) {
+      for(File entry : entries()) {
+        size += entry.length();
+      }
+    }
+    memory = inMemory ? new ConcurrentHashMap<String, byte[]>() : null;
+  }
+  
+  /**
+   * Returns the number of functions decompiled while looking in this cache,
+   * not counting those that could not be cached.
+   */
+  public long getDecompiled() {
+    return decompiled.get();
+  }
+  
+  /**
+   * Returns the number of functions whose text was taken from this cache,
+   * counting the nested functions included in it.
+   */
+  public long getReused() {
+    return reused.get();
+  }
+  
+  /**
+   * Returns the number of functions that could not be cached.
+   */
+  public long getUncached() {
+    return uncached.get();
+  }
+  
+  /**
+   * Returns the key of the decompiler's function, or null if its text cannot
+   * be cached. Generated local names are numbered across the whole chunk, so
+   * only functions whose nested functions all have debug information are
+   * cached. The key covers the decompiler's options and the upvalue names it
+   * resolved from the parent.
+   */
+  public String key(Decompiler d) {
+    LFunction function = d.function;
+    Configuration config = d.getConfiguration();
+    Configuration parsed = function.header.config;
+    if(config.variable == Configuration.VariableMode.NODEBUG || hasStripped(function)) {
+      uncached.incrementAndGet();
+      return null;
+    }
+    MessageDigest md = newDigest();
+    update(md, Main.version);
+    update(md, function.header.version.getName());
+    update(md, config.variable.name());
+    update(md, Boolean.toString(config.rawstring));
+    update(md, Boolean.toString(config.strict_scope));
+    update(md, Boolean.toString(parsed.luaj));
+    update(md, String.valueOf(parsed.typemap));
+    update(md, String.valueOf(parsed.opmap));
+    for(String name : d.getUpvalues().names) {
+      update(md, String.valueOf(name));
+    }
+    md.update(digest(function));
+    return hex(md.digest());
+  }
+  
+  private static int count(LFunction function) {
+    int count = 1;
+    for(LFunction child : function.functions) {
+      count += count(child);
+    }
+    return count;
+  }
+  
+  private static boolean hasStripped(LFunction function) {
+    if(function.isStripped()) return true;
+    for(LFunction child : function.functions) {
+      if(hasStripped(child)) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Hashes the contents of a function and its nested functions, remembering
+   * the result for as long as the function is alive.
+   */
+  private static byte[] digest(LFunction function) {
+    synchronized(digests) {
+      byte[] digest = digests.get(function);
+      if(digest != null) return digest;
+    }
+    MessageDigest md = newDigest();
+    update(md, function.numParams);
+    update(md, function.vararg);
+    update(md, function.maximumStackSize);
+    update(md, function.code.length);
+    for(int codepoint : function.code) {
+      update(md, codepoint);
+    }
+    update(md, function.constants.length);
+    for(LObject constant : function.constants) {
+      update(md, constant.getClass().getName());
+      if(constant instanceof LString) {
+        LString string = (LString) constant;
+        update(md, Boolean.toString(string.islong));
+        update(md, string.value);
+      } else if(constant instanceof LNumber) {
+        update(md, Long.toString(((LNumber) constant).bits()));
+        update(md, constant.toPrintString(0));
+      } else if(constant instanceof LBoolean) {
+        update(md, Boolean.toString(((LBoolean) constant).value()));
+      }
+    }
+    update(md, function.locals.length);
+    for(LLocal local : function.locals) {
+      update(md, local.name.deref());
+      update(md, local.start);
+      update(md, local.end);
+    }
+    update(md, function.upvalues.length);
+    for(LUpvalue upvalue : function.upvalues) {
+      update(md, upvalue.instack ? 1 : 0);
+      update(md, upvalue.idx);
+      update(md, upvalue.kind);
+      // only the names from the file; resolved names are part of the key
+      update(md, upvalue.bname != null ? upvalue.bname.deref() : "");
+    }
+    update(md, function.functions.length);
+    for(LFunction child : function.functions) {
+      md.update(digest(child));
+    }
+    byte[] digest = md.digest();
+    synchronized(digests) {
+      digests.put(function, digest);
+    }
+    return digest;
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+  
+  private static void update(MessageDigest md, int value) {
+    md.update((byte) (value >>> 24));
+    md.update((byte) (value >>> 16));
+    md.update((byte) (value >>> 8));
+    md.update((byte) value);
+  }
+  
+  private static void update(MessageDigest md, String value) {
+    try {
+      byte[] bytes = value.getBytes("UTF-8");
+      update(md, bytes.length);
+      md.update(bytes);
+    } catch(UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+  
+  private static String hex(byte[] bytes) {
+    StringBuilder b = new StringBuilder(bytes.length * 2);
+    for(byte x : bytes) {
+      b.append(Character.forDigit((x >> 4) & 0xF, 16));
+      b.append(Character.forDigit(x & 0xF, 16));
+    }
+    return b.toString();
+  }
+  
+  /**
+   * Returns the recorded text of the function with the given key, or null if
+   * there is none.
+   */
+  public byte[] get(String key, LFunction function) {
+    byte[] text = memory != null ? memory.get(key) : null;
+    if(text == null && dir != null) {
+      text = read(key);
+      if(text != null && memory != null) {
+        memory.put(key, text);
+      }
+    }
+    if(text != null) {
+      reused.addAndGet(count(function));
+    } else {
+      decompiled.incrementAndGet();
+    }
+    return text;
+  }
+  
+  /**
+   * Stores the recorded text of a function under its key.
+   */
+  public void put(String key, byte[] text) {
+    if(memory != null) {
+      memory.put(key, text);
+    }
+    if(dir != null) {
+      write(key, text);
+    }
+  }
+  
+  /**
+   * Reads an entry from the directory, marking it as recently used.
+   */
+  private byte[] read(String key) {
+    File entry = new File(dir, key + SUFFIX);
+    try {
+      byte[] text = Files.readAllBytes(entry.toPath());
+      if(!isValid(text)) return null;
+      entry.setLastModified(System.currentTimeMillis());
+      return text;
+    } catch(IOException e) {
+      return null;
+    }
+  }
+  
+  private static boolean isValid(byte[] text) {
+    int i = 0;
+    while(i < text.length) {
+      if(text.length - i < 9) return false;
+      int length = ((text[i + 5] & 0xFF) << 24) | ((text[i + 6] & 0xFF) << 16) | ((text[i + 7] & 0xFF) << 8) | (text[i + 8] & 0xFF);
+      if(length < 0 || length > text.length - i - 9) return false;
+      i += 9 + length;
+    }
+    return true;
+  }
+  
+  /**
+   * Writes an entry to the directory, evicting the least recently used
+   * entries if the cache has grown too large. Failing to write an entry is
+   * not an error; the function is simply decompiled again next time.
+   */
+  private void write(String key, byte[] text) {
+    File entry = new File(dir, key + SUFFIX);
+    try {
+      File temp = File.createTempFile(key, ".tmp", dir);
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(text);
+      } finally {
+        out.close();
+      }
+      long replaced = entry.length();
+      Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      synchronized(this) {
+        size += text.length - replaced;
+        if(size > limit) {
+          evict();
+        }
+      }
+    } catch(IOException e) {
+      return;
+    }
+  }
+  
+  /**
+   * Deletes entries, oldest first, until the cache is a little under its
+   * limit so that the next few stores do not each have to scan it again.
+   */
+  private void evict() {
+    File[] entries = entries();
+    final long[] used = new long[entries.length];
+    for(int i = 0; i < entries.length; i++) {
+      used[i] = entries[i].lastModified();
+    }
+    Integer[] order = new Integer[entries.length];
+    for(int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+    
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(used[a], used[b]);
+      }
+    
+    });
+    size = 0;
+    for(File entry : entries) {
+      size += entry.length();
+    }
+    long target = limit - limit / 8;
+    for(int i = 0; i < order.length && size > target; i++) {
+      File entry = entries[order[i]];
+      long length = entry.length();
+      if(entry.delete()) {
+        size -= length;
+      }
+    }
+  }
+  
+  private File[] entries() {
+    File[] entries = dir.listFiles();
+    if(entries == null) return new File[0];
+    int count = 0;
+    for(File entry : entries) {
+      if(entry.getName().endsWith(SUFFIX)) {
+        entries[count++] = entry;
+      }
+    }
+    return Arrays.copyOf(entries, count);
+  }
+  
+  /**
+   * Collects what is printed to an {@link Output} so that it can be replayed
+   * later at a different indentation. The recording output starts one level
+   * in, so every line printed relative to the function's indentation starts
+   * with tabs; a line without them was printed flush left, such as the rest
+   * of a long string, and is replayed flush left as well.
+   */
+  public static class Recorder implements OutputProvider {
+  
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream data = new DataOutputStream(buffer);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private int indent = 0;
+    
+    public Output getOutput() {
+      Output out = new Output(this);
+      out.setIndentationLevel(1);
+      return out;
+    }
+    
+    @Override
+    public void print(String s) {
+      // Output only prints whole strings for the indentation of a line
+      indent = s.length();
+    }
+    
+    @Override
+    public void print(byte b) {
+      line.write(b);
+    }
+    
+    @Override
+    public void print(byte[] bytes, int offset, int length) {
+      line.write(bytes, offset, length);
+    }
+    
+    @Override
+    public void println() {
+      endLine(true);
+    }
+    
+    @Override
+    public void finish() {
+    
+    }
+    
+    private void endLine(boolean newline) {
+      try {
+        data.writeBoolean(newline);
+        data.writeInt(indent);
+        data.writeInt(line.size());
+        line.writeTo(data);
+      } catch(IOException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      line.reset();
+      indent = 0;
+    }
+    
+    public byte[] toByteArray() {
+      if(line.size() > 0 || indent > 0) {
+        endLine(false);
+      }
+      return buffer.toByteArray();
+    }
+  
+  }
+  
+  /**
+   * Prints recorded text at the output's current indentation.
+   */
+  public static void replay(byte[] text, Output out) {
+    int level = out.getIndentationLevel();
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(text));
+    try {
+      while(data.available() > 0) {
+        boolean newline = data.readBoolean();
+        int indent = data.readInt();
+        byte[] line = new byte[data.readInt()];
+        data.readFully(line);
+        out.setIndentationLevel(indent == 0 ? 0 : level + indent - 1);
+        out.print(line, 0, line.length);
+        if(newline) {
+          out.println();
+        }
+      }
+    } catch(IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    } finally {
+      out.setIndentationLevel(level);
+    }
+  }
+
+}
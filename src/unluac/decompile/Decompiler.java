@@ -3,10 +3,16 @@ package unluac.decompile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import unluac.Configuration;
 import unluac.Version;
@@ -38,7 +44,6 @@ import unluac.decompile.target.Target;
 import unluac.decompile.target.UpvalueTarget;
 import unluac.decompile.target.VariableTarget;
 import unluac.parse.LFunction;
-import unluac.parse.LUpvalue;
 import unluac.util.Stack;
 
 public class Decompiler {
@@ -56,33 +61,92 @@ public class Decompiler {
   private final int params;
   private final int vararg;
   
+  private final Decompiler root;
+  private final int line;
+  private final Configuration config;
+  private DecompileCache cache;
+  private final Profiler profiler;
+  private int localIndex;
+  private int abandonedCount;
+  private Map<LFunction, Decompiler> closures;
+  private State result;
+  private long[] passTimes;
+  
   public static class State {
     private Registers r;
     private boolean[] skip;
     private Block outer;
     private boolean[] labels;
+    private Output stream;
+    private UnusedConstants constants;
+    private int scanned;
+    private int waiting;
+    private String key;
+    private byte[] cached;
+    private Budget budget;
+    private String abandoned;
   }
   
   public Decompiler(LFunction function) {
-    this(function, null, -1);
+    this(function, null, -1, function.header.config, null);
+  }
+  
+  /**
+   * Creates a decompiler that reports the cost of each phase, for this
+   * function and every closure in it, to the given profiler.
+   */
+  public Decompiler(LFunction function, Profiler profiler) {
+    this(function, null, -1, function.header.config, profiler);
+  }
+  
+  /**
+   * Creates a decompiler that takes its options from the given configuration
+   * rather than the one the chunk was parsed with, so that one parsed chunk
+   * can be decompiled in different ways. The profiler may be null.
+   */
+  public Decompiler(LFunction function, Configuration config, Profiler profiler) {
+    this(function, null, -1, config, profiler);
+  }
+  
+  public Decompiler(LFunction function, Decompiler parent, int line) {
+    this(function, parent, line, parent != null ? parent.config : function.header.config, parent != null ? parent.profiler : null);
   }
   
-  public Decompiler(LFunction function, Declaration[] parentDecls, int line) {
+  private Decompiler(LFunction function, Decompiler parent, int line, Configuration config, Profiler profiler) {
+    this.config = config;
+    this.profiler = profiler;
+    if(parent == null) {
+      if(profiler != null) profiler.begin(Profiler.PARSE, null);
+      try {
+        function.loadAll();
+      } finally {
+        if(profiler != null) profiler.end();
+      }
+    }
     this.f = new Function(function);
     this.function = function;
+    root = parent != null ? parent.root : this;
+    this.line = line;
+    cache = parent != null ? parent.cache : DecompileCache.open(config);
+    localIndex = 0;
     registers = function.maximumStackSize;
     length = function.code.length;
-    code = new Code(function);
+    code = function.getDecoded();
     if(getNoDebug()) {
-      if(function.locals.length >= function.numParams) {
-        Declaration[] tempdeclList = new Declaration[function.locals.length];
-        for(int i = 0; i < tempdeclList.length; i++) {
-          tempdeclList[i] = new Declaration(function.locals[i], code);
+      if(profiler != null) profiler.begin(Profiler.VARIABLES, function);
+      try {
+        if(function.locals.length >= function.numParams) {
+          Declaration[] tempdeclList = new Declaration[function.locals.length];
+          for(int i = 0; i < tempdeclList.length; i++) {
+            tempdeclList[i] = new Declaration(function.locals[i], code);
+          }
+          declList = VariableFinder.process(this, function.numParams, function.maximumStackSize, tempdeclList);
+          registers = function.maximumStackSize;
+        } else {
+          declList = VariableFinder.process(this, function.numParams, function.maximumStackSize);
         }
-        declList = VariableFinder.process(this, function.numParams, function.maximumStackSize, tempdeclList);
-        registers = function.maximumStackSize;
-      } else {
-        declList = VariableFinder.process(this, function.numParams, function.maximumStackSize);
+      } finally {
+        if(profiler != null) profiler.end();
       }
     } else if(function.locals.length >= function.numParams) {
       declList = new Declaration[function.locals.length];
@@ -95,98 +159,481 @@ public class Decompiler {
         declList[i] = new Declaration("_ARG_" + i + "_", 0, length - 1);
       }
     }
-    upvalues = new Upvalues(function, parentDecls, line);
+    upvalues = new Upvalues(function, parent, line);
     functions = function.functions;
     params = function.numParams;
     vararg = function.vararg;
   }
   
   public Configuration getConfiguration() {
-    return function.header.config;
+    return config;
   }
   
   public Version getVersion() {
     return function.header.version;
   }
   
+  /**
+   * Returns the next index for generated local names. The counter is shared by
+   * every function of the chunk so that nested functions never reuse a name.
+   */
+  int nextLocalIndex() {
+    return root.localIndex++;
+  }
+  
+  private synchronized void addPassTimes(long[] times) {
+    if(passTimes == null) {
+      passTimes = new long[times.length];
+    }
+    for(int i = 0; i < times.length; i++) {
+      passTimes[i] += times[i];
+    }
+  }
+  
+  /**
+   * Returns the nanoseconds spent so far in each control flow pass, summed
+   * over every function of the chunk and indexed like
+   * {@link ControlFlowHandler#PASSES}, or null unless timing is enabled.
+   */
+  public long[] getPassTimes() {
+    synchronized(root) {
+      return root.passTimes == null ? null : root.passTimes.clone();
+    }
+  }
+  
+  /**
+   * Makes this function, and the closures decompiled through it, use the
+   * given cache in place of the configured one.
+   */
+  public void setCache(DecompileCache cache) {
+    this.cache = cache;
+  }
+  
   public boolean getNoDebug() {
-    return function.header.config.variable == Configuration.VariableMode.NODEBUG || function.stripped;
+    return config.variable == Configuration.VariableMode.NODEBUG || function.isStripped();
+  }
+  
+  Upvalues getUpvalues() {
+    return upvalues;
   }
   
   public State decompile() {
     State state = new State();
-    state.r = new Registers(registers, length, declList, f, getNoDebug());
-    ControlFlowHandler.Result result = ControlFlowHandler.process(this, state.r);
-    List<Block> blocks = result.blocks;
-    state.outer = blocks.get(0);
-    state.labels = result.labels;
-    processSequence(state, blocks, 1, code.length);
-    for(Block block : blocks) {
-      block.resolve(state.r);
+    if(cache != null) {
+      state.key = cache.key(this);
+      if(state.key != null) {
+        state.cached = cache.get(state.key, function);
+        if(state.cached != null) return state;
+      }
+    }
+    state.budget = Budget.start(config);
+    try {
+      ControlFlowHandler.Result result = analyze(state);
+      if(profiler != null) profiler.begin(Profiler.STATEMENTS, function);
+      try {
+        processSequence(state, result.blocks, 1, code.length);
+        UnusedConstants constants = new UnusedConstants();
+        constants.scan(state.outer);
+        constants.assign(state.outer);
+      } finally {
+        if(profiler != null) profiler.end();
+      }
+    } catch(Budget.Exceeded e) {
+      // nothing of the analysis is kept, and the result is not cached
+      State abandoned = new State();
+      abandoned.abandoned = e.getMessage();
+      return abandoned;
     }
-    handleUnusedConstants(state.outer);
+    state.budget = null;
     return state;
   }
   
+  /**
+   * Decompiles this function and prints it in the same pass. Each statement
+   * of the outer block is printed and released as soon as the following
+   * lines can no longer change it, so the function's statements are never
+   * all held at once. Nested functions are decompiled as they are printed.
+   * If the function goes over its budget, the statements already printed
+   * are followed by the disassembly of the whole function.
+   */
+  public void stream(Output out) {
+    State state = new State();
+    state.budget = Budget.start(config);
+    ControlFlowHandler.Result result;
+    try {
+      result = analyze(state);
+    } catch(Budget.Exceeded e) {
+      printAbandoned(e.getMessage(), out);
+      return;
+    }
+    state.stream = out;
+    state.constants = new UnusedConstants();
+    state.scanned = 0;
+    state.waiting = -1;
+    handleInitialDeclares(out);
+    if(profiler != null) profiler.begin(Profiler.STATEMENTS, function);
+    try {
+      processSequence(state, result.blocks, 1, code.length);
+    } catch(Budget.Exceeded e) {
+      printAbandoned(e.getMessage(), out);
+      releaseClosureResults();
+      return;
+    } finally {
+      if(profiler != null) profiler.end();
+    }
+    OuterBlock outer = (OuterBlock) state.outer;
+    int count = outer.getStatementCount();
+    for(int i = state.scanned; i < count; i++) {
+      state.constants.scan(outer.getStatement(i));
+    }
+    for(int i = 0; i < count; i++) {
+      state.constants.assign(outer.getStatement(i));
+    }
+    if(profiler != null) profiler.begin(Profiler.PRINT, function);
+    try {
+      outer.print(this, out);
+    } finally {
+      releaseClosureResults();
+      if(profiler != null) profiler.end();
+    }
+  }
+  
+  /**
+   * Runs the control flow analysis of this function into the given state.
+   */
+  private ControlFlowHandler.Result analyze(State state) {
+    if(profiler != null) profiler.begin(Profiler.CONTROL_FLOW, function);
+    try {
+      state.r = new Registers(registers, length, declList, f, getNoDebug(), state.budget);
+      ControlFlowHandler.Result result = ControlFlowHandler.process(this, state.r);
+      if(result.passTimes != null) {
+        root.addPassTimes(result.passTimes);
+      }
+      state.outer = result.blocks.get(0);
+      state.labels = result.labels;
+      return result;
+    } finally {
+      if(profiler != null) profiler.end();
+    }
+  }
+  
+  /**
+   * Prints the finished statements at the head of the outer block. The last
+   * statement is kept since the next line may still extend it, and so is
+   * the one before it, which is printed as a tail if the last turns out to
+   * be the implicit return. A statement that could yet be given an unused
+   * constant also waits.
+   */
+  private void flushStatements(State state) {
+    OuterBlock outer = (OuterBlock) state.outer;
+    int complete = outer.getStatementCount() - 2;
+    while(state.scanned < complete) {
+      state.constants.scan(outer.getStatement(state.scanned++));
+    }
+    int printed = 0;
+    while(printed < complete) {
+      Statement stmt = outer.getStatement(printed);
+      if(state.waiting == state.constants.scanned) break;
+      if(!state.constants.isSettled(stmt)) {
+        // nothing changes for it until more constants have been scanned
+        state.waiting = state.constants.scanned;
+        break;
+      }
+      state.waiting = -1;
+      state.constants.assign(stmt);
+      if(profiler != null) profiler.begin(Profiler.PRINT, function);
+      // the closures printed here are decompiled on their own budgets
+      if(state.budget != null) state.budget.pause();
+      try {
+        stmt.print(this, state.stream);
+        if(!stmt.suppressNewline()) {
+          state.stream.println();
+        }
+      } finally {
+        if(state.budget != null) state.budget.resume();
+        if(profiler != null) profiler.end();
+      }
+      printed++;
+    }
+    if(printed > 0) {
+      outer.releaseStatements(printed);
+      state.scanned -= printed;
+      releaseClosureResults();
+    }
+  }
+  
+  /**
+   * Decompiles this function and then every nested function ahead of printing.
+   * A closure can only be analyzed after its parent, which settles the
+   * declarations and upvalues it refers to, so the work proceeds one nesting
+   * level at a time; the closures of a level are independent of each other and
+   * run concurrently on the executor. Decompilers are created on the calling
+   * thread, in order, so generated local names do not depend on scheduling.
+   */
+  public State decompile(ExecutorService executor) {
+    result = decompile();
+    List<Decompiler> level = Collections.singletonList(this);
+    while(!level.isEmpty()) {
+      List<Decompiler> next = new ArrayList<Decompiler>();
+      for(Decompiler parent : level) {
+        // a cached or abandoned function is not analyzed, nor are its closures
+        if(parent.result.cached != null || parent.result.abandoned != null) continue;
+        for(int line = 1; line <= parent.length; line++) {
+          if(!parent.result.skip[line] && parent.code.op(line) == Op.CLOSURE) {
+            LFunction child = parent.functions[parent.code.Bx(line)];
+            if(parent.closures == null) {
+              parent.closures = new HashMap<LFunction, Decompiler>();
+            }
+            if(!parent.closures.containsKey(child)) {
+              Decompiler d = new Decompiler(child, parent, line + 1);
+              parent.closures.put(child, d);
+              next.add(d);
+            }
+          }
+        }
+      }
+      List<Future<State>> results = new ArrayList<Future<State>>(next.size());
+      for(final Decompiler d : next) {
+        results.add(executor.submit(new Callable<State>() {
+          
+          @Override
+          public State call() {
+            return d.decompile();
+          }
+          
+        }));
+      }
+      for(int i = 0; i < next.size(); i++) {
+        try {
+          next.get(i).result = results.get(i).get();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("decompilation interrupted");
+        } catch(ExecutionException e) {
+          Throwable cause = e.getCause();
+          if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+          if(cause instanceof Error) throw (Error) cause;
+          throw new IllegalStateException(cause);
+        }
+      }
+      level = next;
+    }
+    return result;
+  }
+  
+  /**
+   * Returns the decompiler for a closure of this function created at the given
+   * line. Closures are remembered along with their declarations, so a closure
+   * printed more than once keeps its generated names, and with their results
+   * until this function has been printed, so it is only analyzed once. The
+   * ones prepared by {@link #decompile(ExecutorService)} are handed out the
+   * same way.
+   */
+  public Decompiler getClosureDecompiler(LFunction child, int line) {
+    if(closures == null) {
+      closures = new HashMap<LFunction, Decompiler>();
+    }
+    Decompiler d = closures.get(child);
+    if(d == null || d.line != line) {
+      d = new Decompiler(child, this, line);
+      closures.put(child, d);
+    }
+    return d;
+  }
+  
+  /**
+   * Returns the result of this function, decompiling it the first time.
+   */
+  public State getResult() {
+    if(result == null) {
+      result = decompile();
+    }
+    return result;
+  }
+  
+  /**
+   * Drops the results of the closures of this function, and of theirs, once
+   * they have been printed. Their declarations are kept.
+   */
+  private void releaseClosureResults() {
+    if(closures != null) {
+      for(Decompiler d : closures.values()) {
+        d.result = null;
+        d.releaseClosureResults();
+      }
+    }
+  }
+  
+  /**
+   * Drops the result of this function and everything remembered for its
+   * closures, for a caller that keeps the decompiler after printing.
+   */
+  public void release() {
+    result = null;
+    closures = null;
+  }
+  
   public void print(State state) {
-    print(state, new Output());
+    Output out = new Output();
+    print(state, out);
+    out.finish();
   }
   
   public void print(State state, OutputProvider out) {
     print(state, new Output(out));
   }
   
+  /**
+   * Prints a decompiled function. With a cache, the text is recorded as it is
+   * printed and stored, and a function found in the cache is replayed. The
+   * results of the function's closures are released afterwards.
+   */
   public void print(State state, Output out) {
-    handleInitialDeclares(out);
-    state.outer.print(this, out);
+    if(profiler != null) profiler.begin(Profiler.PRINT, function);
+    try {
+      printState(state, out);
+    } finally {
+      releaseClosureResults();
+      if(profiler != null) profiler.end();
+    }
   }
   
-  private void handleUnusedConstants(Block outer) {
-    Set<Integer> unusedConstants = new HashSet<Integer>(function.constants.length);
-    outer.walk(new Walker() {
-      
-      private int nextConstant = 0;
-      
-      @Override
-      public void visitExpression(Expression expression) {
-        if(expression.isConstant()) {
-          int index = expression.getConstantIndex();
-          if(index >= 0) {
-            while(index > nextConstant) {
-              unusedConstants.add(nextConstant++);
+  private void printState(State state, Output out) {
+    if(state.abandoned != null) {
+      printAbandoned(state.abandoned, out);
+    } else if(state.cached != null) {
+      DecompileCache.replay(state.cached, out);
+    } else if(state.key != null) {
+      DecompileCache.Recorder recorder = new DecompileCache.Recorder();
+      Output capture = recorder.getOutput();
+      int abandoned = root.abandonedCount;
+      boolean complete = false;
+      try {
+        handleInitialDeclares(capture);
+        state.outer.print(this, capture);
+        complete = true;
+      } finally {
+        // what was printed before a failure is still passed on
+        byte[] text = recorder.toByteArray();
+        // a closure left as disassembly might decompile with another budget
+        if(complete && root.abandonedCount == abandoned) {
+          cache.put(state.key, text);
+        }
+        DecompileCache.replay(text, out);
+      }
+    } else {
+      handleInitialDeclares(out);
+      state.outer.print(this, out);
+    }
+  }
+  
+  /**
+   * Prints the disassembly of this function and its closures as comments, in
+   * place of the source of a function that went over its budget.
+   */
+  private void printAbandoned(String reason, Output out) {
+    root.abandonedCount++;
+    out.println("-- unluac: not decompiled, " + reason);
+    Disassembler.forFunction(function).disassemble(new Output(new CommentOutputProvider(out)));
+  }
+  
+  /**
+   * Offers the constants that no expression refers to, in order, to the
+   * statements that can take one, such as the condition of a "while true"
+   * loop. Statements are scanned and then assigned in the order they are
+   * printed; streaming feeds them one top-level statement at a time.
+   */
+  private class UnusedConstants {
+    
+    private final Set<Integer> unused = new HashSet<Integer>(function.constants.length);
+    
+    /* Constants below this have been seen or found unused by the scan. */
+    private int scanned = 0;
+    
+    /* The next constant the assignment can hand out. */
+    private int assigned = 0;
+    
+    public void scan(Statement stmt) {
+      stmt.walk(new Walker() {
+        
+        @Override
+        public void visitExpression(Expression expression) {
+          if(expression.isConstant()) {
+            int index = expression.getConstantIndex();
+            if(index >= 0) {
+              while(index > scanned) {
+                unused.add(scanned++);
+              }
+              if(index == scanned) {
+                scanned++;
+              }
             }
-            if(index == nextConstant) {
-              nextConstant++;
+          }
+        }
+        
+      });
+    }
+    
+    public void assign(Statement stmt) {
+      stmt.walk(new Walker() {
+        
+        @Override
+        public void visitStatement(Statement statement) {
+          if(unused.contains(assigned)) {
+            if(statement.useConstant(f, assigned)) {
+              assigned++;
             }
           }
         }
-      }
-      
-    });
-    outer.walk(new Walker() {
-      
-      private int nextConstant = 0;
-      
-      @Override
-      public void visitStatement(Statement statement) {
-        if(unusedConstants.contains(nextConstant)) {
-          if(statement.useConstant(f, nextConstant)) {
-            nextConstant++;
+        
+        @Override
+        public void visitExpression(Expression expression) {
+          if(expression.isConstant()) {
+            int index = expression.getConstantIndex();
+            if(index >= assigned) {
+              assigned = index + 1;
+            }
           }
         }
-      }
-      
-      @Override
-      public void visitExpression(Expression expression) {
-        if(expression.isConstant()) {
-          int index = expression.getConstantIndex();
-          if(index >= nextConstant) {
-            nextConstant = index + 1;
+        
+      });
+    }
+    
+    /**
+     * Returns true if assigning the given statement now gives the same result
+     * as after the whole function has been scanned.
+     */
+    public boolean isSettled(Statement stmt) {
+      final boolean[] settled = {true};
+      stmt.walk(new Walker() {
+        
+        private int next = assigned;
+        
+        @Override
+        public void visitStatement(Statement statement) {
+          if(statement.acceptsConstant()) {
+            if(next >= scanned) {
+              settled[0] = false;
+            } else if(unused.contains(next)) {
+              next++;
+            }
           }
         }
-      }
-      
-    });
+        
+        @Override
+        public void visitExpression(Expression expression) {
+          if(expression.isConstant()) {
+            int index = expression.getConstantIndex();
+            if(index >= next) {
+              next = index + 1;
+            }
+          }
+        }
+        
+      });
+      return settled[0];
+    }
+    
   }
   
   private void handleInitialDeclares(Output out) {
@@ -715,22 +1162,10 @@ public class Decompiler {
         break;
       case CLOSURE: {
         LFunction f = functions[Bx];
-        operations.add(new RegisterSet(line, A, new ClosureExpression(f, line + 1)));
+        operations.add(new RegisterSet(line, A, new ClosureExpression(f, Upvalues.declared(f, code, line + 1), line + 1)));
         if(function.header.version.upvaluedeclarationtype.get() == Version.UpvalueDeclarationType.INLINE) {
           // Handle upvalue declarations
           for(int i = 0; i < f.numUpvalues; i++) {
-            LUpvalue upvalue = f.upvalues[i];
-            switch(code.op(line + 1 + i)) {
-              case MOVE:
-                upvalue.instack = true;
-                break;
-              case GETUPVAL:
-                upvalue.instack = false;
-                break;
-              default:
-                throw new IllegalStateException();
-            }
-            upvalue.idx = code.B(line + 1 + i);
             skip[line + 1 + i] = true;
           }
         }
@@ -819,11 +1254,12 @@ public class Decompiler {
     return assign;
   }
   
-  public boolean hasStatement(int begin, int end) {
+  public boolean hasStatement(int begin, int end, Budget budget) {
     if(begin <= end) {
       State state = new State();
-      state.r = new Registers(registers, length, declList, f, getNoDebug());
-      state.outer = new OuterBlock(function, code.length);
+      state.r = new Registers(registers, length, declList, f, getNoDebug(), budget);
+      // Nothing past the scoped block can add to it, so stop right after it.
+      state.outer = new OuterBlock(function, Math.min(end, code.length));
       Block scoped = new DoEndBlock(function, begin, end + 1);
       state.labels = new boolean[code.length + 1];
       List<Block> blocks = Arrays.asList(state.outer, scoped);
@@ -834,6 +1270,15 @@ public class Decompiler {
     }
   }
   
+  private void resolve(Block block, Registers r) {
+    if(profiler != null) profiler.begin(Profiler.RESOLVE, function);
+    try {
+      block.resolve(r);
+    } finally {
+      if(profiler != null) profiler.end();
+    }
+  }
+  
   private void processSequence(State state, List<Block> blocks, int begin, int end) {
     Registers r = state.r;
     int blockContainerIndex = 0;
@@ -847,6 +1292,10 @@ public class Decompiler {
         blockStatements.add(block);
       }
     }
+    if(state.stream != null) {
+      // Let printed blocks go; these lists only hand out each block once.
+      blocks.clear();
+    }
     Stack<Block> blockStack = new Stack<Block>();
     blockStack.push(blockContainers.get(blockContainerIndex++));
     
@@ -865,6 +1314,7 @@ public class Decompiler {
       if(blockStack.peek().end <= line) {
         Block endingBlock = blockStack.pop();
         Operation operation = endingBlock.process(this);
+        resolve(endingBlock, r);
         if(blockStack.isEmpty()) return;
         if(operation == null) throw new IllegalStateException();
         operations = Arrays.asList(operation);
@@ -877,7 +1327,7 @@ public class Decompiler {
         
         List<Declaration> locals = r.getNewLocals(line, blockStack.peek().closeRegister);
         while(blockContainerIndex < blockContainers.size() && blockContainers.get(blockContainerIndex).begin <= line) {
-          Block next = blockContainers.get(blockContainerIndex++);
+          Block next = blockContainers.set(blockContainerIndex++, null);
           if(!locals.isEmpty() && next.allowsPreDeclare() &&
             (locals.get(0).end > next.scopeEnd() || locals.get(0).register < next.closeRegister)
           ) {
@@ -901,8 +1351,9 @@ public class Decompiler {
       // Handle other sources of operations (after pushing any new container block)
       if(operations == null) {
         if(blockStatementIndex < blockStatements.size() && blockStatements.get(blockStatementIndex).begin <= line) {
-          Block blockStatement = blockStatements.get(blockStatementIndex++);
+          Block blockStatement = blockStatements.set(blockStatementIndex++, null);
           Operation operation = blockStatement.process(this);
+          resolve(blockStatement, r);
           operations = Arrays.asList(operation);
         } else {
           // After all blocks are handled for a line, we will reach here
@@ -957,6 +1408,10 @@ public class Decompiler {
         }
       }
       
+      if(state.stream != null && blockStack.size() == 1) {
+        flushStatements(state);
+      }
+      
       line = nextline;
     }
   }
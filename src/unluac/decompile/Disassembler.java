@@ -14,16 +14,33 @@ public class Disassembler {
   private final Code code;
   private final String name;
   private final String parent;
+  private final boolean header;
   
   public Disassembler(LFunction function) {
-    this(function, "main", null);
+    this(function, "main", null, true);
   }
   
-  private Disassembler(LFunction function, String name, String parent) {
+  /**
+   * Creates a disassembler for one function of a chunk and its closures,
+   * named as in a listing of the whole chunk, without the chunk's header.
+   */
+  public static Disassembler forFunction(LFunction function) {
+    String path = Profiler.path(function);
+    int slash = path.lastIndexOf('/');
+    if(slash == -1) {
+      return new Disassembler(function, path, null, false);
+    } else {
+      return new Disassembler(function, path.substring(slash + 1), path.substring(0, slash), false);
+    }
+  }
+  
+  private Disassembler(LFunction function, String name, String parent, boolean header) {
+    function.load();
     this.function = function;
-    this.code = new Code(function);
+    this.code = function.getDecoded();
     this.name = name;
     this.parent = parent;
+    this.header = header;
   }
   
   public void disassemble(Output out) {
@@ -32,7 +49,7 @@ public class Disassembler {
   
   private void disassemble(Output out, int level, int index) {
     final int print_flags = PrintFlag.DISASSEMBLER;
-    if(parent == null) {
+    if(header) {
       out.println(".version\t" + function.header.version.getName());
       out.println();
       
@@ -146,6 +163,7 @@ public class Disassembler {
           int f = code.Bx(line);
           if(f >= 0 && f < function.functions.length) {
             LFunction closed = function.functions[f];
+            closed.load();
             if(closed.numUpvalues > 0) {
               upvalue_count = closed.numUpvalues;
             }
@@ -171,7 +189,7 @@ public class Disassembler {
     
     int subindex = 0;
     for(LFunction child : function.functions) {
-      new Disassembler(child, "f" + subindex, fullname).disassemble(out, level + 1, subindex);
+      new Disassembler(child, "f" + subindex, fullname, false).disassemble(out, level + 1, subindex);
       subindex++;
     }
   }
@@ -1,36 +1,73 @@
 package unluac.decompile;
 
-import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 public class FileOutputProvider implements OutputProvider {
   
+  private static final int BUFFER_SIZE = 1 << 16;
+  
   private final OutputStream out;
+  private final boolean close;
   private final String eol;
+  private final byte[] buffer;
+  private int count;
+  private IOException error;
   
   public FileOutputProvider(FileOutputStream out) {
-    this.out = new BufferedOutputStream(out);
+    this(out, true);
+  }
+  
+  /**
+   * Writes to any stream, closing it when finished only if asked to; the
+   * configuration's output uses this for standard output.
+   */
+  public FileOutputProvider(OutputStream out, boolean close) {
+    this.out = out;
+    this.close = close;
     eol = System.lineSeparator();
+    buffer = new byte[BUFFER_SIZE];
+    count = 0;
+  }
+  
+  /**
+   * Returns the exception thrown by the stream, if any. Printing fails with
+   * an unchecked exception when the stream does, so the caller can recover
+   * the original one here.
+   */
+  public IOException getError() {
+    return error;
   }
   
   @Override
   public void print(String s) {
-    for(int i = 0; i < s.length(); i++) {
+    int length = s.length();
+    for(int i = 0; i < length; i++) {
       int c = s.charAt(i);
       if(c < 0 || c > 255) throw new IllegalStateException();
-      print((byte) c);
+      if(count == buffer.length) flushBuffer();
+      buffer[count++] = (byte) c;
     }
   }
 
   @Override
   public void print(byte b) {
-    try {
-      out.write(b);
-    } catch(IOException e) {
-      throw new RuntimeException(e.getMessage());
+    if(count == buffer.length) flushBuffer();
+    buffer[count++] = b;
+  }
+  
+  @Override
+  public void print(byte[] bytes, int offset, int length) {
+    if(length > buffer.length - count) {
+      flushBuffer();
+      if(length >= buffer.length) {
+        write(bytes, offset, length);
+        return;
+      }
     }
+    System.arraycopy(bytes, offset, buffer, count, length);
+    count += length;
   }
   
   @Override
@@ -40,10 +77,30 @@ public class FileOutputProvider implements OutputProvider {
   
   @Override
   public void finish() {
-   try {
-     out.flush();
-     out.close();
+    flushBuffer();
+    try {
+      out.flush();
+      if(close) {
+        out.close();
+      }
+    } catch(IOException e) {
+      error = e;
+      throw new RuntimeException(e.getMessage());
+    }
+  }
+  
+  private void flushBuffer() {
+    if(count > 0) {
+      write(buffer, 0, count);
+      count = 0;
+    }
+  }
+  
+  private void write(byte[] bytes, int offset, int length) {
+    try {
+      out.write(bytes, offset, length);
     } catch(IOException e) {
+      error = e;
       throw new RuntimeException(e.getMessage());
     }
   }
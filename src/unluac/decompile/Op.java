@@ -197,22 +197,55 @@ public enum Op {
     }
   }
   
-  public int jumpField(int codepoint, CodeExtract ex) {
+  /**
+   * How the jump offset of an operation is encoded, if it has one.
+   */
+  private static enum Jump {
+    NONE,
+    BX,
+    NEGATIVE_BX,
+    SBX,
+    SJ,
+  }
+  
+  private Jump jump() {
     switch(this) {
       case FORPREP54:
       case TFORPREP54:
-        return ex.Bx.extract(codepoint);
+        return Jump.BX;
       case FORLOOP54:
       case TFORLOOP54:
-        return -ex.Bx.extract(codepoint);
+        return Jump.NEGATIVE_BX;
       case JMP:
       case FORLOOP:
       case FORPREP:
       case JMP52:
       case TFORLOOP52:
       case TFORPREP:
-        return ex.sBx.extract(codepoint);
+        return Jump.SBX;
       case JMP54:
+        return Jump.SJ;
+      default:
+        return Jump.NONE;
+    }
+  }
+  
+  /**
+   * Returns true if {@link #jumpField} applies to this operation.
+   */
+  public boolean hasJumpField() {
+    return jump() != Jump.NONE;
+  }
+  
+  public int jumpField(int codepoint, CodeExtract ex) {
+    switch(jump()) {
+      case BX:
+        return ex.Bx.extract(codepoint);
+      case NEGATIVE_BX:
+        return -ex.Bx.extract(codepoint);
+      case SBX:
+        return ex.sBx.extract(codepoint);
+      case SJ:
         return ex.sJ.extract(codepoint);
       default:
         throw new IllegalStateException();
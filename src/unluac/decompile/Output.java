@@ -1,29 +1,52 @@
 package unluac.decompile;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 public class Output {
 
+  private static final String[] TABS = new String[16];
+  
+  static {
+    TABS[0] = "";
+    for(int i = 1; i < TABS.length; i++) {
+      TABS[i] = TABS[i - 1] + "\t";
+    }
+  }
+  
   private OutputProvider out;
   private int indentationLevel = 0;
   private int position = 0;
   private boolean start = true;
   private boolean paragraph = false;
+  private byte[] bytes = new byte[256];
+  private CharsetEncoder encoder;
   
+  /**
+   * Prints straight to standard output, so that the text is seen without
+   * finishing the output, even among other prints to it.
+   */
   public Output() {
     this(new OutputProvider() {
-
+      
       @Override
       public void print(String s) {
         System.out.print(s);
       }
-
+      
       @Override
       public void print(byte b) {
         System.out.write(b);
       }
       
+      @Override
+      public void print(byte[] bytes, int offset, int length) {
+        System.out.write(bytes, offset, length);
+      }
+      
       @Override
       public void println() {
         System.out.println();
@@ -69,9 +92,9 @@ public class Output {
   
   private void start() {
     if(position == 0) {
-      for(int i = indentationLevel; i != 0; i--) {
-        out.print("\t");
-        position++;
+      if(indentationLevel > 0) {
+        out.print(tabs(indentationLevel));
+        position += indentationLevel;
       }
       if(paragraph && !start) {
         paragraph = false;
@@ -83,13 +106,56 @@ public class Output {
     start = false;
   }
   
+  private static String tabs(int count) {
+    if(count < TABS.length) {
+      return TABS[count];
+    }
+    StringBuilder b = new StringBuilder(count);
+    for(int i = 0; i < count; i++) {
+      b.append('\t');
+    }
+    return b.toString();
+  }
+  
   public void print(String s) {
     start();
-    ByteBuffer bb = Charset.forName("UTF-8").encode(s);
-    for(int i = 0; i < bb.limit(); i++) {
-      out.print(bb.get(i));
+    int length = s.length();
+    if(bytes.length < length) {
+      bytes = new byte[Math.max(length, 2 * bytes.length)];
+    }
+    int i = 0;
+    while(i < length) {
+      char c = s.charAt(i);
+      if(c >= 0x80) break;
+      bytes[i++] = (byte) c;
+    }
+    if(i == length) {
+      out.print(bytes, 0, length);
+    } else {
+      encode(s);
+    }
+    position += length;
+  }
+  
+  /**
+   * Encodes text that is not plain ASCII as UTF-8, replacing unpaired
+   * surrogates the same way String.getBytes does.
+   */
+  private void encode(String s) {
+    if(encoder == null) {
+      encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    int size = (int) Math.ceil(s.length() * (double) encoder.maxBytesPerChar());
+    if(bytes.length < size) {
+      bytes = new byte[size];
     }
-    position += s.length();
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(s), bb, true);
+    encoder.flush(bb);
+    out.print(bytes, 0, bb.position());
   }
   
   public void print(byte b) {
@@ -98,6 +164,12 @@ public class Output {
     position += 1;
   }
   
+  public void print(byte[] bytes, int offset, int length) {
+    start();
+    out.print(bytes, offset, length);
+    position += length;
+  }
+  
   public void println() {
     start();
     out.println();
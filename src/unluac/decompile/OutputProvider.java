@@ -6,6 +6,16 @@ public interface OutputProvider {
   
   public void print(byte b);
   
+  /**
+   * Prints a run of bytes. Providers that can copy the run in one go should
+   * override this; the default prints the bytes one at a time.
+   */
+  public default void print(byte[] bytes, int offset, int length) {
+    for(int i = offset; i < offset + length; i++) {
+      print(bytes[i]);
+    }
+  }
+  
   public void println();
   
   public void finish();
@@ -0,0 +1,278 @@
+package unluac.decompile;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import unluac.parse.LFunction;
+import unluac.util.Stack;
+
+/**
+ * Records the wall time, CPU time and allocated bytes spent in each phase of
+ * decompiling each function. Phases nest, as when a closure is decompiled
+ * while its parent is printed; every phase is charged only for the time
+ * outside the phases nested in it, so the figures add up to the total.
+ * Decompilers only call into a profiler when one is given, so profiling
+ * costs nothing otherwise.
+ */
+public class Profiler {
+
+  public static final int PARSE = 0;
+  public static final int VARIABLES = 1;
+  public static final int CONTROL_FLOW = 2;
+  public static final int STATEMENTS = 3;
+  public static final int RESOLVE = 4;
+  public static final int PRINT = 5;
+  
+  public static final String[] PHASES = {"parse", "variables", "control flow", "statements", "resolve", "print"};
+  
+  private static class Entry {
+  
+    final LFunction function;
+    final long[] wall = new long[PHASES.length];
+    final long[] cpu = new long[PHASES.length];
+    final long[] alloc = new long[PHASES.length];
+    
+    Entry(LFunction function) {
+      this.function = function;
+    }
+    
+    long total(long[] values) {
+      long total = 0;
+      for(long value : values) total += value;
+      return total;
+    }
+  
+  }
+  
+  private static class Frame {
+  
+    final int phase;
+    final Entry entry;
+    final long wall;
+    final long cpu;
+    final long alloc;
+    long nestedWall;
+    long nestedCpu;
+    long nestedAlloc;
+    
+    Frame(int phase, Entry entry, long wall, long cpu, long alloc) {
+      this.phase = phase;
+      this.entry = entry;
+      this.wall = wall;
+      this.cpu = cpu;
+      this.alloc = alloc;
+    }
+  
+  }
+  
+  private final ThreadMXBean threads;
+  private final com.sun.management.ThreadMXBean allocation;
+  private final Map<LFunction, Entry> entries = new HashMap<LFunction, Entry>();
+  private final List<Entry> order = new ArrayList<Entry>();
+  private final ThreadLocal<Stack<Frame>> stacks = new ThreadLocal<Stack<Frame>>() {
+  
+    @Override
+    protected Stack<Frame> initialValue() {
+      return new Stack<Frame>();
+    }
+  
+  };
+  
+  public Profiler() {
+    threads = ManagementFactory.getThreadMXBean();
+    if(threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+      threads.setThreadCpuTimeEnabled(true);
+    }
+    com.sun.management.ThreadMXBean allocation = null;
+    if(threads instanceof com.sun.management.ThreadMXBean) {
+      allocation = (com.sun.management.ThreadMXBean) threads;
+      if(!allocation.isThreadAllocatedMemorySupported()) {
+        allocation = null;
+      } else if(!allocation.isThreadAllocatedMemoryEnabled()) {
+        allocation.setThreadAllocatedMemoryEnabled(true);
+      }
+    }
+    this.allocation = allocation;
+  }
+  
+  /**
+   * Starts a phase of the given function on the calling thread. The function
+   * is null for the parse of a whole chunk. Every begin must be matched by
+   * an {@link #end}, normally in a finally block.
+   */
+  public void begin(int phase, LFunction function) {
+    Entry entry;
+    synchronized(entries) {
+      entry = entries.get(function);
+      if(entry == null) {
+        entry = new Entry(function);
+        entries.put(function, entry);
+        order.add(entry);
+      }
+    }
+    stacks.get().push(new Frame(phase, entry, System.nanoTime(), cpuTime(), allocatedBytes()));
+  }
+  
+  /**
+   * Ends the phase most recently begun on the calling thread.
+   */
+  public void end() {
+    long wall = System.nanoTime();
+    long cpu = cpuTime();
+    long alloc = allocatedBytes();
+    Stack<Frame> stack = stacks.get();
+    Frame frame = stack.pop();
+    wall -= frame.wall;
+    cpu -= frame.cpu;
+    alloc -= frame.alloc;
+    synchronized(frame.entry) {
+      frame.entry.wall[frame.phase] += wall - frame.nestedWall;
+      frame.entry.cpu[frame.phase] += cpu - frame.nestedCpu;
+      frame.entry.alloc[frame.phase] += alloc - frame.nestedAlloc;
+    }
+    if(!stack.isEmpty()) {
+      Frame outer = stack.peek();
+      outer.nestedWall += wall;
+      outer.nestedCpu += cpu;
+      outer.nestedAlloc += alloc;
+    }
+  }
+  
+  private long cpuTime() {
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+  }
+  
+  private long allocatedBytes() {
+    return allocation != null ? allocation.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+  }
+  
+  /**
+   * Returns a name for the function: its path of nested function indexes
+   * from the main function, as the disassembler names them, and the line it
+   * was defined on.
+   */
+  public static String getName(LFunction function) {
+    if(function == null) return "(chunk)";
+    String path = path(function);
+    return function.linedefined > 0 ? path + " (line " + function.linedefined + ")" : path;
+  }
+  
+  static String path(LFunction function) {
+    LFunction parent = function.getParent();
+    if(parent == null) return "main";
+    for(int i = 0; i < parent.functions.length; i++) {
+      if(parent.functions[i] == function) {
+        return path(parent) + "/f" + i;
+      }
+    }
+    return path(parent) + "/?";
+  }
+  
+  private List<Entry> sortedEntries() {
+    List<Entry> sorted;
+    synchronized(entries) {
+      sorted = new ArrayList<Entry>(order);
+    }
+    Collections.sort(sorted, new Comparator<Entry>() {
+    
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(b.total(b.wall), a.total(a.wall));
+      }
+    
+    });
+    return sorted;
+  }
+  
+  /**
+   * Prints the totals of each phase followed by the given number of functions
+   * that took the longest.
+   */
+  public void report(PrintStream out, int top) {
+    List<Entry> sorted = sortedEntries();
+    long[] wall = new long[PHASES.length];
+    long[] cpu = new long[PHASES.length];
+    long[] alloc = new long[PHASES.length];
+    for(Entry entry : sorted) {
+      for(int phase = 0; phase < PHASES.length; phase++) {
+        wall[phase] += entry.wall[phase];
+        cpu[phase] += entry.cpu[phase];
+        alloc[phase] += entry.alloc[phase];
+      }
+    }
+    out.println("profile by phase:");
+    out.println(String.format("  %-28s%12s%12s%12s", "phase", "wall ms", "cpu ms", "alloc MB"));
+    long totalWall = 0, totalCpu = 0, totalAlloc = 0;
+    for(int phase = 0; phase < PHASES.length; phase++) {
+      out.println(row(PHASES[phase], wall[phase], cpu[phase], alloc[phase]));
+      totalWall += wall[phase];
+      totalCpu += cpu[phase];
+      totalAlloc += alloc[phase];
+    }
+    out.println(row("total", totalWall, totalCpu, totalAlloc));
+    out.println("slowest " + Math.min(top, sorted.size()) + " of " + sorted.size() + " functions:");
+    out.println(String.format("  %-28s%12s%12s%12s  %s", "function", "wall ms", "cpu ms", "alloc MB", "slowest phase"));
+    for(int i = 0; i < top && i < sorted.size(); i++) {
+      Entry entry = sorted.get(i);
+      int slowest = 0;
+      for(int phase = 1; phase < PHASES.length; phase++) {
+        if(entry.wall[phase] > entry.wall[slowest]) slowest = phase;
+      }
+      out.println(row(getName(entry.function), entry.total(entry.wall), entry.total(entry.cpu), entry.total(entry.alloc)) + "  " + PHASES[slowest]);
+    }
+  }
+  
+  private static String row(String name, long wall, long cpu, long alloc) {
+    return String.format("  %-28s%12.3f%12.3f%12.3f", name, wall / 1e6, cpu / 1e6, alloc / (double) (1 << 20));
+  }
+  
+  /**
+   * Writes every function's figures for each phase as JSON, slowest first.
+   * Times are in nanoseconds and allocations in bytes.
+   */
+  public void writeJson(PrintStream out) {
+    out.println("{");
+    out.println("  \"functions\": [");
+    List<Entry> sorted = sortedEntries();
+    for(int i = 0; i < sorted.size(); i++) {
+      Entry entry = sorted.get(i);
+      out.println("    {");
+      out.println("      \"name\": " + quote(getName(entry.function)) + ",");
+      out.println("      \"linedefined\": " + (entry.function != null ? entry.function.linedefined : -1) + ",");
+      out.println("      \"phases\": {");
+      for(int phase = 0; phase < PHASES.length; phase++) {
+        out.print("        " + quote(PHASES[phase]) + ": {\"wall_ns\": " + entry.wall[phase] + ", \"cpu_ns\": " + entry.cpu[phase] + ", \"alloc_bytes\": " + entry.alloc[phase] + "}");
+        out.println(phase + 1 < PHASES.length ? "," : "");
+      }
+      out.println("      }");
+      out.println(i + 1 < sorted.size() ? "    }," : "    }");
+    }
+    out.println("  ]");
+    out.println("}");
+  }
+  
+  private static String quote(String s) {
+    StringBuilder b = new StringBuilder(s.length() + 2);
+    b.append('"');
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if(c == '"' || c == '\\') {
+        b.append('\\').append(c);
+      } else if(c < 0x20) {
+        b.append(String.format("\\u%04x", (int) c));
+      } else {
+        b.append(c);
+      }
+    }
+    b.append('"');
+    return b.toString();
+  }
+  
+}
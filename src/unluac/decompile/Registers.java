@@ -11,60 +11,243 @@ import unluac.decompile.expression.LocalVariable;
 import unluac.decompile.target.Target;
 import unluac.decompile.target.VariableTarget;
 
+/**
+ * Tracks the declaration and the current value of every register at every
+ * line. Only changes are stored: each register keeps its declarations as
+ * line ranges and its values as a list of writes, so memory grows with the
+ * number of writes rather than with registers times lines.
+ */
 public class Registers {
 
+  /**
+   * The declarations of one register as sorted, non-overlapping line ranges.
+   * A declaration added later replaces earlier ones on the lines it covers.
+   */
+  private static class DeclarationRanges {
+    
+    private int count = 0;
+    private int[] begin = new int[4];
+    private int[] end = new int[4];
+    private Declaration[] decls = new Declaration[4];
+    
+    Declaration get(int line) {
+      int index = find(line);
+      return index >= 0 && end[index] >= line ? decls[index] : null;
+    }
+    
+    void put(int first, int last, Declaration decl) {
+      if(first > last) return;
+      int[] newBegin = new int[count + 2];
+      int[] newEnd = new int[count + 2];
+      Declaration[] newDecls = new Declaration[count + 2];
+      int newCount = 0;
+      boolean inserted = false;
+      for(int i = 0; i < count; i++) {
+        if(end[i] < first) {
+          newBegin[newCount] = begin[i];
+          newEnd[newCount] = end[i];
+          newDecls[newCount++] = decls[i];
+          continue;
+        }
+        if(begin[i] < first) {
+          newBegin[newCount] = begin[i];
+          newEnd[newCount] = first - 1;
+          newDecls[newCount++] = decls[i];
+        }
+        if(end[i] > last) {
+          if(!inserted) {
+            newBegin[newCount] = first;
+            newEnd[newCount] = last;
+            newDecls[newCount++] = decl;
+            inserted = true;
+          }
+          newBegin[newCount] = Math.max(begin[i], last + 1);
+          newEnd[newCount] = end[i];
+          newDecls[newCount++] = decls[i];
+        }
+      }
+      if(!inserted) {
+        newBegin[newCount] = first;
+        newEnd[newCount] = last;
+        newDecls[newCount++] = decl;
+      }
+      count = newCount;
+      begin = newBegin;
+      end = newEnd;
+      decls = newDecls;
+    }
+    
+    private int find(int line) {
+      int lo = 0;
+      int hi = count - 1;
+      while(lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if(begin[mid] <= line) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return hi;
+    }
+    
+  }
+  
+  /**
+   * The writes to one register, sorted by line. The value at a line is the
+   * one written at the closest line at or before it.
+   */
+  private static class ValueHistory {
+    
+    private int count = 0;
+    private int[] lines = new int[4];
+    private Expression[] values = new Expression[4];
+    private int[] updated = new int[4];
+    
+    /**
+     * Returns the index of the last write at or before the line, or -1.
+     */
+    int find(int line) {
+      int lo = 0;
+      int hi = count - 1;
+      while(lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if(lines[mid] <= line) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return hi;
+    }
+    
+    boolean has(int line) {
+      int index = find(line);
+      return index >= 0 && lines[index] == line;
+    }
+    
+    void put(int line, Expression value, int update) {
+      int index = find(line);
+      if(index < 0 || lines[index] != line) {
+        index++;
+        if(count == lines.length) {
+          int capacity = 2 * count;
+          int[] newLines = new int[capacity];
+          Expression[] newValues = new Expression[capacity];
+          int[] newUpdated = new int[capacity];
+          System.arraycopy(lines, 0, newLines, 0, count);
+          System.arraycopy(values, 0, newValues, 0, count);
+          System.arraycopy(updated, 0, newUpdated, 0, count);
+          lines = newLines;
+          values = newValues;
+          updated = newUpdated;
+        }
+        System.arraycopy(lines, index, lines, index + 1, count - index);
+        System.arraycopy(values, index, values, index + 1, count - index);
+        System.arraycopy(updated, index, updated, index + 1, count - index);
+        count++;
+        lines[index] = line;
+      }
+      values[index] = value;
+      updated[index] = update;
+    }
+    
+    void remove(int line) {
+      int index = find(line);
+      if(index < 0 || lines[index] != line) return;
+      count--;
+      System.arraycopy(lines, index + 1, lines, index, count - index);
+      System.arraycopy(values, index + 1, values, index, count - index);
+      System.arraycopy(updated, index + 1, updated, index, count - index);
+      values[count] = null;
+    }
+    
+  }
+  
   public final int registers;
   public final int length;
   
-  private final Declaration[][] decls;
+  private final DeclarationRanges[] decls;
   private final Function f;
   public final boolean isNoDebug;
-  private final Expression[][] values;
-  private final int[][] updated;
+  private final ValueHistory[] values;
+  private final Expression nil;
+  private final Budget budget;
   
-  public Registers(int registers, int length, Declaration[] declList, Function f, boolean isNoDebug) {
+  /**
+   * The last line passed to startLine. Lines after it have not been reached
+   * yet and only hold the values written directly to them.
+   */
+  private int lastStarted;
+  
+  /**
+   * For each line, a chain of the registers with a write recorded at that
+   * line, so that startLine can find them without visiting every register.
+   */
+  private final int[] lineWrites;
+  private int[] writeRegister;
+  private int[] writeNext;
+  private int writeCount;
+  
+  public Registers(int registers, int length, Declaration[] declList, Function f, boolean isNoDebug, Budget budget) {
     if(registers < declList.length) registers = declList.length;
     this.registers = registers;
     this.length = length;
-    decls = new Declaration[registers][length + 1];
+    decls = new DeclarationRanges[registers];
+    for(int register = 0; register < registers; register++) {
+      decls[register] = new DeclarationRanges();
+    }
     for(int i = 0; i < declList.length; i++) {
       Declaration decl = declList[i];
       int register = 0;
-      while(decls[register][decl.begin] != null) {
+      while(decls[register].get(decl.begin) != null) {
         register++;
       }
       decl.register = register;
-      for(int line = decl.begin; line <= decl.end; line++) {
-        decls[decl.register][line] = decl; 
-      }
+      decls[register].put(decl.begin, decl.end, decl);
     }
-    values = new Expression[registers][length + 1];
-    Expression nil = ConstantExpression.createNil(0);
-    for(int register = 0; register < registers; register++) {
-      values[register][0] = nil;
+    values = new ValueHistory[registers];
+    nil = ConstantExpression.createNil(0);
+    lastStarted = 0;
+    lineWrites = new int[length + 1];
+    for(int line = 0; line <= length; line++) {
+      lineWrites[line] = -1;
     }
-    updated = new int[registers][length + 1];
-    startedLines = new boolean[length + 1];
-    Arrays.fill(startedLines, false);
+    writeRegister = new int[16];
+    writeNext = new int[16];
+    writeCount = 0;
     this.f = f;
     this.isNoDebug = isNoDebug;
+    this.budget = budget;
   }
   
   public Function getFunction() {
     return f;
   }
   
+  public Budget getBudget() {
+    return budget;
+  }
+  
+  /**
+   * Abandons the function if it is over its budget. Called from the loops of
+   * the analysis, and once for every line that is processed.
+   */
+  public void checkBudget() {
+    if(budget != null) budget.check();
+  }
+  
   public boolean isAssignable(int register, int line) {
-    return isLocal(register, line) && (!decls[register][line].forLoop);
+    return isLocal(register, line) && (!getDeclaration(register, line).forLoop);
   }
   
   public boolean isLocal(int register, int line) {
     if(register < 0) return false;
-    return decls[register][line] != null;
+    return getDeclaration(register, line) != null;
   }
   
   public boolean isNewLocal(int register, int line) {
-    Declaration decl = decls[register][line];
+    Declaration decl = getDeclaration(register, line);
     return decl != null && decl.begin == line && !decl.forLoop && !decl.forLoopExplicit;
   }
   
@@ -84,18 +267,25 @@ public class Registers {
   }
   
   public Declaration getDeclaration(int register, int line) {
-    return decls[register][line];
+    return decls[register].get(line);
   }
   
-  private boolean[] startedLines;
-  
+  /**
+   * Carries every register's value forward from the previous line. Registers
+   * without a write at this line already read through to the previous one,
+   * so only the writes recorded here have to be dropped.
+   */
   public void startLine(int line) {
-    //if(startedLines[line]) return;
-    startedLines[line] = true;
-    for(int register = 0; register < registers; register++) {
-      values[register][line] = values[register][line - 1];
-      updated[register][line] = updated[register][line - 1];
+    checkBudget();
+    for(int write = lineWrites[line]; write != -1; write = writeNext[write]) {
+      int register = writeRegister[write];
+      if(values[register].has(line)) {
+        preserveNext(register, line);
+        values[register].remove(line);
+      }
     }
+    lineWrites[line] = -1;
+    if(line > lastStarted) lastStarted = line;
   }
   
   public boolean isKConstant(int register) {
@@ -103,10 +293,11 @@ public class Registers {
   }
   
   public Expression getExpression(int register, int line) {
-    if(isLocal(register, line - 1)) {
-      return new LocalVariable(getDeclaration(register, line - 1));
+    Declaration decl = getDeclaration(register, line - 1);
+    if(decl != null) {
+      return new LocalVariable(decl);
     } else {
-      return values[register][line - 1];
+      return getValueAt(register, line - 1);
     }
   }
   
@@ -127,25 +318,86 @@ public class Registers {
   }
   
   public Expression getValue(int register, int line) {
-    return values[register][line - 1];
+    return getValueAt(register, line - 1);
   }
 
   public int getUpdated(int register, int line) {
-    return updated[register][line];
+    ValueHistory history = values[register];
+    int index = history != null ? find(history, line) : -1;
+    if(index >= 0) {
+      return history.updated[index];
+    } else {
+      return 0;
+    }
   }
   
   public void setValue(int register, int line, Expression expression) {
-    //System.out.println(register);
-    
-    values[register][line] = expression;
-    updated[register][line] = line;
+    ValueHistory history = values[register];
+    if(history == null) {
+      history = new ValueHistory();
+      values[register] = history;
+    }
+    preserveNext(register, line);
+    history.put(line, expression, line);
+    recordWrite(register, line);
+  }
+  
+  private Expression getValueAt(int register, int line) {
+    ValueHistory history = values[register];
+    int index = history != null ? find(history, line) : -1;
+    if(index >= 0) {
+      return history.values[index];
+    } else if(line <= lastStarted) {
+      return nil;
+    } else {
+      return null;
+    }
+  }
+  
+  /**
+   * Finds the write that determines the register's value at the line. Lines
+   * that have not been started yet only see writes made directly to them.
+   */
+  private int find(ValueHistory history, int line) {
+    int index = history.find(line);
+    if(line > lastStarted && index >= 0 && history.lines[index] != line) {
+      return -1;
+    }
+    return index;
+  }
+  
+  /**
+   * Before the register changes at a line, pins the old value to the next
+   * line if that line has already been started, since it took its own copy.
+   */
+  private void preserveNext(int register, int line) {
+    int next = line + 1;
+    if(next <= lastStarted && !values[register].has(next)) {
+      int index = values[register].find(next);
+      if(index >= 0) {
+        values[register].put(next, values[register].values[index], values[register].updated[index]);
+      } else {
+        values[register].put(next, nil, 0);
+      }
+      recordWrite(register, next);
+    }
+  }
+  
+  private void recordWrite(int register, int line) {
+    if(writeCount == writeRegister.length) {
+      writeRegister = Arrays.copyOf(writeRegister, 2 * writeCount);
+      writeNext = Arrays.copyOf(writeNext, 2 * writeCount);
+    }
+    writeRegister[writeCount] = register;
+    writeNext[writeCount] = lineWrites[line];
+    lineWrites[line] = writeCount++;
   }
   
   public Target getTarget(int register, int line) {
     if(!isLocal(register, line)) {
       throw new IllegalStateException("No declaration exists in register " + register + " at line " + line);
     }
-    return new VariableTarget(decls[register][line]);
+    return new VariableTarget(getDeclaration(register, line));
   }
   
   public void setInternalLoopVariable(int register, int begin, int end) {
@@ -191,9 +443,7 @@ public class Registers {
   }
   
   public void newDeclaration(Declaration decl, int register, int begin, int end) {
-    for(int line = begin; line <= end; line++) {
-      decls[register][line] = decl;
-    }
+    decls[register].put(begin, end, decl);
   }
   
   public Version getVersion() {
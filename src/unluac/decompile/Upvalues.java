@@ -1,39 +1,76 @@
 package unluac.decompile;
 
+import unluac.Version;
 import unluac.decompile.expression.UpvalueExpression;
 import unluac.parse.LFunction;
 import unluac.parse.LUpvalue;
 
 public class Upvalues {
 
-  private final LUpvalue[] upvalues;
+  /* The names of the upvalues, as found in the chunk or inferred here. */
+  final String[] names;
   
-  public Upvalues(LFunction func, Declaration[] parentDecls, int line) {
-    this.upvalues = func.upvalues;
-    for(LUpvalue upvalue : upvalues) {
-      if(upvalue.name == null || upvalue.name.isEmpty()) {
+  /**
+   * Names the upvalues of a function. An upvalue without a name in the chunk
+   * is named after the local or the upvalue of the parent that it captures at
+   * the given line. The parsed function is left as it is.
+   */
+  public Upvalues(LFunction func, Decompiler parent, int line) {
+    LUpvalue[] upvalues = parent != null ? declared(func, parent.code, line) : func.upvalues;
+    names = new String[upvalues.length];
+    for(int i = 0; i < upvalues.length; i++) {
+      LUpvalue upvalue = upvalues[i];
+      String name = upvalue.name;
+      if((name == null || name.isEmpty()) && parent != null) {
         if(upvalue.instack) {
-          if(parentDecls != null) {
-            for(Declaration decl : parentDecls) {
-              if(decl.register == upvalue.idx && line >= decl.begin && line < decl.end) {
-                upvalue.name = decl.name;
-                break;
-              }
+          for(Declaration decl : parent.declList) {
+            if(decl.register == upvalue.idx && line >= decl.begin && line < decl.end) {
+              name = decl.name;
+              break;
             }
           }
         } else {
-          LUpvalue[] parentvals = func.parent.upvalues;
-          if(upvalue.idx >= 0 && upvalue.idx < parentvals.length) {
-            upvalue.name = parentvals[upvalue.idx].name;
+          String[] parentnames = parent.getUpvalues().names;
+          if(upvalue.idx >= 0 && upvalue.idx < parentnames.length) {
+            name = parentnames[upvalue.idx];
           }
         }
       }
+      names[i] = name;
     }
   }
   
+  /**
+   * Returns the upvalues of a closure whose declarations start at the given
+   * line of the parent. Versions that declare upvalues with the instructions
+   * following the CLOSURE, rather than in the chunk, are read from the code.
+   */
+  public static LUpvalue[] declared(LFunction func, Code code, int line) {
+    if(func.header.version.upvaluedeclarationtype.get() != Version.UpvalueDeclarationType.INLINE) {
+      return func.upvalues;
+    }
+    LUpvalue[] upvalues = new LUpvalue[func.numUpvalues];
+    for(int i = 0; i < upvalues.length; i++) {
+      LUpvalue upvalue = func.upvalues[i];
+      boolean instack;
+      switch(code.op(line + i)) {
+        case MOVE:
+          instack = true;
+          break;
+        case GETUPVAL:
+          instack = false;
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+      upvalues[i] = new LUpvalue(instack, code.B(line + i), upvalue.kind, upvalue.bname, upvalue.name);
+    }
+    return upvalues;
+  }
+  
   public String getName(int index) {
-    if(index < upvalues.length && upvalues[index].name != null && !upvalues[index].name.isEmpty()) {
-      return upvalues[index].name;
+    if(index < names.length && names[index] != null && !names[index].isEmpty()) {
+      return names[index];
     } else {
       //TODO: SET ERROR
       return "_UPVALUE" + index + "_";
@@ -9,104 +9,225 @@ import unluac.parse.LUpvalue;
 
 public class VariableFinder {
 
-  static class RegisterState {
-    
-    public RegisterState() {
-      last_written = 1;
-      last_read = -1;
-      read_count = 0;
-      func_ref = -1;
-      for_value = -1;
-      func = false;
-      temporary = false;
-      local = false;
-      read = false;
-      written = false;
-    }
-    
-    int last_written;
-    int last_read;
-    int read_count;
-    int func_ref;
-    int for_value;
-    
-    boolean func;
-    boolean temporary;
-    boolean local;
-    boolean read;
-    boolean written;
-  }
-  
+  /**
+   * The read and write history of every register, stored column-wise. Only
+   * the register/line pairs that are actually touched get a cell, and the
+   * last write of each register is kept as a sorted list of lines instead of
+   * being copied forward on every line.
+   */
   static class RegisterStates {
     
-    @SuppressWarnings("unchecked")
+    private static final byte WRITTEN = 1;
+    private static final byte LOCAL = 2;
+    private static final byte TEMPORARY = 4;
+    
     RegisterStates(int registers, int lines) {
       this.registers = registers;
       this.lines = lines;
-      states = (ArrayList<RegisterState>[])(new ArrayList[lines]);
-      for(int line = 0; line < lines; line++) {
-        states[line] = new ArrayList<RegisterState>();
-        for(int register = 0; register < registers; register++) {
-          states[line].add(new RegisterState());
+      line = 0;
+      lastWritten = new int[registers];
+      Arrays.fill(lastWritten, 1);
+      writes = new int[registers][];
+      writeCount = new int[registers];
+      cellLines = new int[registers][];
+      cellIds = new int[registers][];
+      cellCount = new int[registers];
+      flags = new byte[Math.max(16, registers)];
+      readCount = new int[flags.length];
+      cells = 0;
+    }
+    
+    /**
+     * Returns the line of the write to the register that is visible at the
+     * line. Lines after the current one have not been reached yet, so they
+     * only know about writes made directly to them.
+     */
+    public int getLastWritten(int register, int line) {
+      if(line == this.line) {
+        return lastWritten[register];
+      } else if(line > this.line) {
+        return isWritten(register, line) ? line : 1;
+      } else {
+        int[] list = writes[register];
+        int lo = 0;
+        int hi = writeCount[register] - 1;
+        while(lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          if(list[mid] <= line) {
+            lo = mid + 1;
+          } else {
+            hi = mid - 1;
+          }
         }
+        return hi >= 0 ? list[hi] : 1;
       }
     }
     
-    public RegisterState get(int register, int line) {
-      return states[line - 1].get(register);
+    public boolean isWritten(int register, int line) {
+      return hasFlag(register, line, WRITTEN);
+    }
+    
+    public boolean isLocal(int register, int line) {
+      return hasFlag(register, line, LOCAL);
+    }
+    
+    public boolean isTemporary(int register, int line) {
+      return hasFlag(register, line, TEMPORARY);
+    }
+    
+    public int getReadCount(int register, int line) {
+      int cell = cell(register, line, false);
+      return cell >= 0 ? readCount[cell] : 0;
+    }
+    
+    /**
+     * Returns the lines at which the register is written, in order.
+     */
+    public int[] getWrittenLines(int register) {
+      int count = 0;
+      for(int i = 0; i < cellCount[register]; i++) {
+        if((flags[cellIds[register][i]] & WRITTEN) != 0) count++;
+      }
+      int[] written = new int[count];
+      count = 0;
+      for(int i = 0; i < cellCount[register]; i++) {
+        if((flags[cellIds[register][i]] & WRITTEN) != 0) {
+          written[count++] = cellLines[register][i];
+        }
+      }
+      return written;
     }
     
     public void setWritten(int register, int line) {
-      get(register, line).written = true;
-      get(register, line).last_written = line;
-      get(register, line).read_count = 0;
-      get(register, line).func_ref = -1;
+      int cell = cell(register, line, true);
+      flags[cell] |= WRITTEN;
+      readCount[cell] = 0;
+      if(line <= this.line) {
+        lastWritten[register] = line;
+        addWrite(register, line);
+      }
     }
     
     public void setRead(int register, int line) {
-      get(register, line).read = true;
-      get(register, get(register, line).last_written).read_count++;
-      get(register, get(register, line).last_written).last_read = line;
+      int cell = cell(register, getLastWritten(register, line), true);
+      readCount[cell]++;
+    }
+    
+    public void setCaptured(int register, int line) {
+      setFlag(register, getLastWritten(register, line), LOCAL);
     }
     
     public void setLocalRead(int register, int line) {
       for(int r = 0; r <= register; r++) {
-        get(r, get(r, line).last_written).local = true;
+        setFlag(r, getLastWritten(r, line), LOCAL);
       }
     }
     
     public void setLocalWrite(int register_min, int register_max, int line) {
       for(int r = 0; r < register_min; r++) {
-        get(r, get(r, line).last_written).local = true;
+        setFlag(r, getLastWritten(r, line), LOCAL);
       }
       for(int r = register_min; r <= register_max; r++) {
-        get(r, line).local = true;
+        setFlag(r, line, LOCAL);
       }
     }
     
     public void setTemporaryRead(int register, int line) {
       for(int r = register; r < registers; r++) {
-        get(r, get(r, line).last_written).temporary = true;
+        setFlag(r, getLastWritten(r, line), TEMPORARY);
       }
     }
     
     public void setTemporaryWrite(int register_min, int register_max, int line) {
       for(int r = register_min; r <= register_max; r++) {
-        get(r, line).temporary = true;
+        setFlag(r, line, TEMPORARY);
       }
     }
     
+    /**
+     * Moves on to the line. The last writes carry over from the previous line
+     * as they are; a write made to this line before it was reached does not
+     * count as its last write.
+     */
     public void nextLine(int line) {
-      if(line > 1) {
-        for(int r = 0; r < registers; r++) {
-          get(r, line).last_written = get(r, line - 1).last_written;
+      if(line < 1 || line > lines) throw new IllegalStateException();
+      this.line = line;
+    }
+    
+    private boolean hasFlag(int register, int line, byte flag) {
+      int cell = cell(register, line, false);
+      return cell >= 0 && (flags[cell] & flag) != 0;
+    }
+    
+    private void setFlag(int register, int line, byte flag) {
+      int cell = cell(register, line, true);
+      flags[cell] |= flag;
+    }
+    
+    private void addWrite(int register, int line) {
+      int count = writeCount[register];
+      if(count > 0 && writes[register][count - 1] == line) return;
+      if(writes[register] == null) {
+        writes[register] = new int[4];
+      } else if(count == writes[register].length) {
+        writes[register] = Arrays.copyOf(writes[register], 2 * count);
+      }
+      writes[register][count] = line;
+      writeCount[register] = count + 1;
+    }
+    
+    /**
+     * Finds the cell of the register at the line, creating it if asked to.
+     * Returns -1 if there is no such cell.
+     */
+    private int cell(int register, int line, boolean create) {
+      if(line < 1 || line > lines) throw new IllegalStateException();
+      int[] list = cellLines[register];
+      int count = cellCount[register];
+      int lo = 0;
+      int hi = count - 1;
+      while(lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if(list[mid] < line) {
+          lo = mid + 1;
+        } else if(list[mid] > line) {
+          hi = mid - 1;
+        } else {
+          return cellIds[register][mid];
         }
       }
+      if(!create) return -1;
+      if(cells == flags.length) {
+        flags = Arrays.copyOf(flags, 2 * cells);
+        readCount = Arrays.copyOf(readCount, 2 * cells);
+      }
+      if(list == null) {
+        cellLines[register] = list = new int[4];
+        cellIds[register] = new int[4];
+      } else if(count == list.length) {
+        cellLines[register] = list = Arrays.copyOf(list, 2 * count);
+        cellIds[register] = Arrays.copyOf(cellIds[register], 2 * count);
+      }
+      System.arraycopy(list, lo, list, lo + 1, count - lo);
+      System.arraycopy(cellIds[register], lo, cellIds[register], lo + 1, count - lo);
+      list[lo] = line;
+      cellIds[register][lo] = cells;
+      cellCount[register] = count + 1;
+      return cells++;
     }
     
-    private int registers;
-    private int lines;
-    private List<RegisterState>[] states;
+    private final int registers;
+    private final int lines;
+    private int line;
+    private final int[] lastWritten;
+    private final int[][] writes;
+    private final int[] writeCount;
+    private final int[][] cellLines;
+    private final int[][] cellIds;
+    private final int[] cellCount;
+    private byte[] flags;
+    private int[] readCount;
+    private int cells;
   }
   
   private static boolean isConstantReference(Decompiler d, int value) {
@@ -280,13 +401,12 @@ public class VariableFinder {
           break;
         case CLOSURE: {
           LFunction f = d.function.functions[code.Bx(line)];
-          for(LUpvalue upvalue : f.upvalues) {
+          for(LUpvalue upvalue : Upvalues.declared(f, code, line + 1)) {
             if(upvalue.instack) {
-              states.get(upvalue.idx, states.get(upvalue.idx, line).last_written).local = true;
+              states.setCaptured(upvalue.idx, line);
             }
           }
           states.setWritten(A, line);
-          states.get(A, line).func = true;
           break;
         }
         case CALL:
@@ -345,48 +465,13 @@ public class VariableFinder {
         default:
           break;
       }
-    }/*
-    for(int line = 1; line <= code.length(); line++) {
-      for(int register = 0; register < registers; register++) {
-        RegisterState s = states.get(register, line);
-        if(s.written && s.temporary) {
-          List<Integer> ancestors = new ArrayList<Integer>();
-          for(int read = 0; read < registers; read++) {
-            RegisterState r = states.get(read, line);
-            if(r.read && !r.local) {
-              ancestors.add(read);
-            }
-          }
-          int pline;
-          for(pline = line - 1; pline >= 1; pline--) {
-            boolean any_written = false;
-            for(int pregister = 0; pregister < registers; pregister++) {
-              if(states.get(pregister, pline).written && ancestors.contains(pregister)) {
-                any_written = true;
-                ancestors.remove((Object)pregister);
-              }
-            }
-            if(!any_written) {
-              break;
-            }
-          }
-          for(int ancestor : ancestors) {
-            if(pline >= 1) {
-              states.setRead(ancestor, pline);
-            }
-          }
-        }
-      }
-    }*/
+    }
     /*for(int register = 0; register < registers; register++) {
-      for(int line = 1; line <= code.length(); line++) {
-        RegisterState s = states.get(register, line);
-        if(s.written) {
-          System.out.println("WRITE r:" + register + " l:" + line + " .. " + s.last_read);
-          if(s.local) System.out.println("  LOCAL");
-          if(s.temporary) System.out.println("  TEMPORARY");
-          System.out.println("  READ_COUNT " + s.read_count);
-        }
+      for(int line : states.getWrittenLines(register)) {
+        System.out.println("WRITE r:" + register + " l:" + line);
+        if(states.isLocal(register, line)) System.out.println("  LOCAL");
+        if(states.isTemporary(register, line)) System.out.println("  TEMPORARY");
+        System.out.println("  READ_COUNT " + states.getReadCount(register, line));
       }
     }
     //*/
@@ -420,17 +505,13 @@ public class VariableFinder {
         }
       }
       
-      for(int line = 1; line <= code.length(); line++) {
-        RegisterState state = states.get(register, line);
+      for(int line : states.getWrittenLines(register)) {
+        if(states.isTemporary(register, states.getLastWritten(register, line))) continue;
         
-        if(states.get(register, state.last_written).temporary) continue;
-        
-        if(state.written) {
-          if(state.local || state.read_count > 1) {
-            locals.add(true);
-            starts.add(line);
-            ends.add(code.length());
-          }
+        if(states.isLocal(register, line) || states.getReadCount(register, line) > 1) {
+          locals.add(true);
+          starts.add(line);
+          ends.add(code.length());
         }
       }
       
@@ -441,7 +522,7 @@ public class VariableFinder {
         if(is_arg) {
           name = "arg";
         } else {
-          name = id + register + "_" + lc++;
+          name = id + register + "_" + d.nextLocalIndex();
         }
         
         Declaration decl2 = new Declaration(name, starts.get(i), ends.get(i) + d.getVersion().outerblockscopeadjustment.get());
@@ -451,14 +532,14 @@ public class VariableFinder {
       
       if(locals.size() == 0) {
         if(register < args) {
-          name = id + register + "_" + lc++;
+          name = id + register + "_" + d.nextLocalIndex();
           
           Declaration decl = new Declaration(name, 0, code.length() + d.getVersion().outerblockscopeadjustment.get());
           decl.register = register;
           declList.add(decl);
         }
         else if(masterOverride >= 0) {
-          name = id + register + "_" + lc++;
+          name = id + register + "_" + d.nextLocalIndex();
           
           Declaration decl = new Declaration(name, masterOverride, code.length() + d.getVersion().outerblockscopeadjustment.get());
           decl.register = register;
@@ -470,8 +551,6 @@ public class VariableFinder {
     return declList.toArray(new Declaration[declList.size()]);
   }
   
-  static int lc = 0;
-  
   private VariableFinder() {}
   
 }
\ No newline at end of file
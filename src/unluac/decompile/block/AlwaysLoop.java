@@ -89,11 +89,16 @@ public class AlwaysLoop extends ContainerBlock {
 
   @Override
   public boolean useConstant(Function f, int index) {
-    if(!repeat && condition == null) {
+    if(acceptsConstant()) {
       condition = f.getConstantExpression(index);
       return true;
     } else {
       return false;
     }
   }
+  
+  @Override
+  public boolean acceptsConstant() {
+    return !repeat && condition == null;
+  }
 }
\ No newline at end of file
@@ -38,17 +38,33 @@ public class OuterBlock extends ContainerBlock {
     return (end - 1) + function.header.version.outerblockscopeadjustment.get();
   }
   
+  public int getStatementCount() {
+    return statements.size();
+  }
+  
+  public Statement getStatement(int index) {
+    return statements.get(index);
+  }
+  
+  /**
+   * Drops the first statements of the block once they have been printed.
+   */
+  public void releaseStatements(int count) {
+    statements.subList(0, count).clear();
+  }
+  
   @Override
   public void print(Decompiler d, Output out) {
     /* extra return statement */
     int last = statements.size() - 1;
     if(last < 0 || !(statements.get(last) instanceof Return)) {
       //throw new IllegalStateException(statements.get(last).toString());
+      Statement.printSequence(d, out, statements);
     }
     else {
-      statements.remove(last);
+      // left in place so that the block can be printed again
+      Statement.printSequence(d, out, statements.subList(0, last));
     }
-    Statement.printSequence(d, out, statements);
   }
   
 }
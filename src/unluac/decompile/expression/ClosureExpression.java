@@ -12,11 +12,13 @@ import unluac.parse.LUpvalue;
 public class ClosureExpression extends Expression {
 
   private final LFunction function;
+  private final LUpvalue[] upvalues;
   private int upvalueLine;
   
-  public ClosureExpression(LFunction function, int upvalueLine) {
+  public ClosureExpression(LFunction function, LUpvalue[] upvalues, int upvalueLine) {
     super(PRECEDENCE_ATOMIC);
     this.function = function;
+    this.upvalues = upvalues;
     this.upvalueLine = upvalueLine;
   }
 
@@ -46,8 +48,8 @@ public class ClosureExpression extends Expression {
       return false; //TODO:
     }
     */
-    for(int i = 0; i < function.upvalues.length; i++) {
-      LUpvalue upvalue = function.upvalues[i];
+    for(int i = 0; i < upvalues.length; i++) {
+      LUpvalue upvalue = upvalues[i];
       if(upvalue.instack && upvalue.idx == register) {
         return true;
       }
@@ -62,14 +64,14 @@ public class ClosureExpression extends Expression {
   
   @Override
   public void print(Decompiler outer, Output out) {
-    Decompiler d = new Decompiler(function, outer.declList, upvalueLine);
+    Decompiler d = outer.getClosureDecompiler(function, upvalueLine);
     out.print("function");
     printMain(out, d, true);
   }
   
   @Override
   public void printClosure(Decompiler outer, Output out, Target name) {
-    Decompiler d = new Decompiler(function, outer.declList, upvalueLine);
+    Decompiler d = outer.getClosureDecompiler(function, upvalueLine);
     out.print("function ");
     if(function.numParams >= 1 && d.declList[0].name.equals("self") && name instanceof TableTarget) {
       name.printMethod(outer, out);
@@ -81,6 +83,20 @@ public class ClosureExpression extends Expression {
   }
   
   private void printMain(Output out, Decompiler d, boolean includeFirst) {
+    printParameters(d, out, includeFirst);
+    Decompiler.State result = d.getResult();
+    d.print(result, out);
+    out.dedent();
+    out.print("end");
+    //out.println(); //This is an extra space for formatting
+  }
+  
+  /**
+   * Prints the parameter list of the decompiler's function and indents the
+   * output for its body.
+   */
+  public static void printParameters(Decompiler d, Output out, boolean includeFirst) {
+    LFunction function = d.function;
     out.print("(");
     int start = includeFirst ? 0 : 1;
     if(function.numParams > start) {
@@ -100,11 +116,6 @@ public class ClosureExpression extends Expression {
     out.print(")");
     out.println();
     out.indent();
-    Decompiler.State result = d.decompile();
-    d.print(result, out);
-    out.dedent();
-    out.print("end");
-    //out.println(); //This is an extra space for formatting
   }
   
 }
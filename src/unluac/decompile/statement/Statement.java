@@ -55,4 +55,11 @@ abstract public class Statement {
     return false;
   }
   
+  /**
+   * Returns true if {@link #useConstant} could still take a constant.
+   */
+  public boolean acceptsConstant() {
+    return false;
+  }
+  
 }
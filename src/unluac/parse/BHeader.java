@@ -48,6 +48,10 @@ public class BHeader {
   
   public final LFunction main;
   
+  /* Set when nested functions are only skimmed and decoded on demand. */
+  public final boolean lazy;
+  public final ByteBuffer buffer;
+  
   public BHeader(Version version, LHeader lheader, TypeMap typemap) {
     this(version, lheader, typemap, null);
   }
@@ -73,10 +77,14 @@ public class BHeader {
     this.typemap = typemap;
     opmap = version.getOpcodeMap();
     this.main = main;
+    lazy = false;
+    buffer = null;
   }
   
   public BHeader(ByteBuffer buffer, Configuration config) {
     this.config = config;
+    lazy = config.lazy;
+    this.buffer = config.lazy ? buffer : null;
     // 4 byte Lua signature
     for(int i = 0; i < signature.length; i++) {
       if(buffer.get() != signature[i]) {
@@ -119,57 +127,13 @@ public class BHeader {
     
     try {
       if(config.typemap != null) {
-        Tokenizer t = new Tokenizer(new FileInputStream(new File(config.typemap)));
-        String tok;
-        Map<Integer, Type> usertypemap = new HashMap<Integer, Type>();
-        while((tok = t.next()) != null) {
-          if(tok.equals(".type")) {
-            tok = t.next();
-            if(tok == null) throw new RuntimeException("Unexpected end of typemap file.");
-            int opcode;
-            try {
-              opcode = Integer.parseInt(tok);
-            } catch(NumberFormatException e) {
-              throw new RuntimeException("Excepted number in typemap file, got \"" + tok + "\".");
-            }
-            tok = t.next();
-            if(tok == null) throw new RuntimeException("Unexpected end of typemap file.");
-            Type type = Type.get(tok);
-            if(type == null) throw new RuntimeException("Unknown type name \"" + tok + "\" in typemap file.");
-            usertypemap.put(opcode, type);
-          } else {
-            throw new RuntimeException("Unexpected token \"" + tok + "\" + in typemap file.");
-          }
-        }
-        typemap = new TypeMap(usertypemap);
+        typemap = config.registry.getTypeMap(config.typemap);
       } else {
         typemap = version.getTypeMap();
       }
     
       if(config.opmap != null) {
-        Tokenizer t = new Tokenizer(new FileInputStream(new File(config.opmap)));
-        String tok;
-        Map<Integer, Op> useropmap = new HashMap<Integer, Op>();
-        while((tok = t.next()) != null) {
-          if(tok.equals(".op")) {
-            tok = t.next();
-            if(tok == null) throw new IllegalStateException("Unexpected end of opmap file.");
-            int opcode;
-            try {
-              opcode = Integer.parseInt(tok);
-            } catch(NumberFormatException e) {
-              throw new IllegalStateException("Excepted number in opmap file, got \"" + tok + "\".");
-            }
-            tok = t.next();
-            if(tok == null) throw new IllegalStateException("Unexpected end of opmap file.");
-            Op op = version.getOpcodeMap().get(tok);
-            if(op == null) throw new IllegalStateException("Unknown op name \"" + tok + "\" in opmap file.");
-            useropmap.put(opcode, op);
-          } else {
-            throw new IllegalStateException("Unexpected token \"" + tok + "\" + in opmap file.");
-          }
-        }
-        opmap = new OpcodeMap(useropmap);
+        opmap = config.registry.getOpcodeMap(config.opmap, version);
       } else {
         opmap = version.getOpcodeMap();
       }
@@ -185,17 +149,16 @@ public class BHeader {
       }
       // TODO: check this value
     }
-    main = function.parse(buffer, this);
+    main = function.parseBody(buffer, this);
     if(upvalues >= 0) {
       if(main.numUpvalues != upvalues) {
         throw new IllegalStateException("The main chunk has the wrong number of upvalues: " + main.numUpvalues + " (" + upvalues + " expected)");
       }
     }
     if(main.numUpvalues >= 1 && versionNumber >= 0x52 && (main.upvalues[0].name == null || main.upvalues[0].name.isEmpty())) {
-      main.upvalues[0].name = "_ENV";
+      LUpvalue upvalue = main.upvalues[0];
+      main.upvalues[0] = new LUpvalue(upvalue.instack, upvalue.idx, upvalue.kind, upvalue.bname, "_ENV");
     }
-    main.setLevel(1);
-    if(main.stripped) System.err.println("Warning: This file was stripped when it was compiled.\nYou may need to edit it manually.");
   }
   
   public void write(OutputStream out) throws IOException {
@@ -211,4 +174,78 @@ public class BHeader {
     function.write(out, this, main);
   }
   
+  /**
+   * Reads the type mapping in the given file. Chunks share the maps read
+   * through their configuration's {@link unluac.Registry}.
+   */
+  public static TypeMap loadTypeMap(String filename) throws IOException {
+    TypeMap typemap;
+    FileInputStream in = new FileInputStream(new File(filename));
+    try {
+      Tokenizer t = new Tokenizer(in);
+      String tok;
+      Map<Integer, Type> usertypemap = new HashMap<Integer, Type>();
+      while((tok = t.next()) != null) {
+        if(tok.equals(".type")) {
+          tok = t.next();
+          if(tok == null) throw new RuntimeException("Unexpected end of typemap file.");
+          int opcode;
+          try {
+            opcode = Integer.parseInt(tok);
+          } catch(NumberFormatException e) {
+            throw new RuntimeException("Excepted number in typemap file, got \"" + tok + "\".");
+          }
+          tok = t.next();
+          if(tok == null) throw new RuntimeException("Unexpected end of typemap file.");
+          Type type = Type.get(tok);
+          if(type == null) throw new RuntimeException("Unknown type name \"" + tok + "\" in typemap file.");
+          usertypemap.put(opcode, type);
+        } else {
+          throw new RuntimeException("Unexpected token \"" + tok + "\" + in typemap file.");
+        }
+      }
+      typemap = new TypeMap(usertypemap);
+    } finally {
+      in.close();
+    }
+    return typemap;
+  }
+  
+  /**
+   * Reads the opcode mapping in the given file, with op names as spelled in
+   * the given version.
+   */
+  public static OpcodeMap loadOpcodeMap(String filename, Version version) throws IOException {
+    OpcodeMap opmap;
+    FileInputStream in = new FileInputStream(new File(filename));
+    try {
+      Tokenizer t = new Tokenizer(in);
+      String tok;
+      Map<Integer, Op> useropmap = new HashMap<Integer, Op>();
+      while((tok = t.next()) != null) {
+        if(tok.equals(".op")) {
+          tok = t.next();
+          if(tok == null) throw new IllegalStateException("Unexpected end of opmap file.");
+          int opcode;
+          try {
+            opcode = Integer.parseInt(tok);
+          } catch(NumberFormatException e) {
+            throw new IllegalStateException("Excepted number in opmap file, got \"" + tok + "\".");
+          }
+          tok = t.next();
+          if(tok == null) throw new IllegalStateException("Unexpected end of opmap file.");
+          Op op = version.getOpcodeMap().get(tok);
+          if(op == null) throw new IllegalStateException("Unknown op name \"" + tok + "\" in opmap file.");
+          useropmap.put(opcode, op);
+        } else {
+          throw new IllegalStateException("Unexpected token \"" + tok + "\" + in opmap file.");
+        }
+      }
+      opmap = new OpcodeMap(useropmap);
+    } finally {
+      in.close();
+    }
+    return opmap;
+  }
+  
 }
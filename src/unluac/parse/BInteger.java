@@ -8,8 +8,8 @@ public class BInteger extends BObject {
   private final BigInteger big;
   private final int n;
   
-  private static BigInteger MAX_INT = null;
-  private static BigInteger MIN_INT = null;
+  private static final BigInteger MAX_INT = BigInteger.valueOf(Integer.MAX_VALUE);
+  private static final BigInteger MIN_INT = BigInteger.valueOf(Integer.MIN_VALUE);
   
   public BInteger(BInteger b) {
     this.big = b.big;
@@ -24,10 +24,6 @@ public class BInteger extends BObject {
   public BInteger(BigInteger big) {
     this.big = big;
     this.n = 0;
-    if(MAX_INT == null) {
-      MAX_INT = BigInteger.valueOf(Integer.MAX_VALUE);
-      MIN_INT = BigInteger.valueOf(Integer.MIN_VALUE);
-    }
   }
 
   public int asInt() {
@@ -24,6 +24,33 @@ abstract public class BIntegerType extends BObjectType<BInteger> {
     return new BInteger(n);
   }
   
+  /**
+   * Parses an integer that must fit in an int, without allocating. Used for
+   * sizes, counts and line numbers, which make up most of a chunk.
+   */
+  public int parseInt(ByteBuffer buffer, BHeader header) {
+    return parse(buffer, header).asInt();
+  }
+  
+  /**
+   * Parses a list of integers, such as line info, into a plain array.
+   */
+  public int[] parseIntList(ByteBuffer buffer, BHeader header) {
+    int length = header.integer.parseInt(buffer, header);
+    if(length < 0) {
+      throw new IllegalStateException("Illegal negative list length");
+    }
+    int[] values = new int[length];
+    for(int i = 0; i < length; i++) {
+      values[i] = parseInt(buffer, header);
+    }
+    return values;
+  }
+  
+  static IllegalStateException outOfRange() {
+    return new IllegalStateException("The size of an integer is outside the range that unluac can handle.");
+  }
+  
 }
 
 class BIntegerType50 extends BIntegerType {
@@ -40,22 +67,14 @@ class BIntegerType50 extends BIntegerType {
   
   protected BInteger raw_parse(ByteBuffer buffer, BHeader header) {
     BInteger value;
-    if(signed && (intSize == 0 || intSize == 1 || intSize == 2 || intSize == 4)) {
-      switch(intSize) {
-        case 0:
-          value = new BInteger(0);
-          break;
-        case 1:
-          value = new BInteger(buffer.get());
-          break;
-        case 2:
-          value = new BInteger(buffer.getShort());
-          break;
-        case 4:
-          value = new BInteger(buffer.getInt());
-          break;
-        default:
-          throw new IllegalStateException();  
+    if(intSize <= 8) {
+      long x = raw_parse_long(buffer);
+      if(fitsInt(x)) {
+        value = new BInteger((int) x);
+      } else if(signed || x >= 0) {
+        value = new BInteger(BigInteger.valueOf(x));
+      } else {
+        value = new BInteger(new BigInteger(Long.toUnsignedString(x)));
       }
     } else {
       byte[] bytes = new byte[intSize];
@@ -82,6 +101,65 @@ class BIntegerType50 extends BIntegerType {
     return value;
   }
   
+  /**
+   * Reads an integer of up to 8 bytes; unsigned 8-byte values come back as
+   * their two's complement bit pattern.
+   */
+  private long raw_parse_long(ByteBuffer buffer) {
+    switch(intSize) {
+      case 0:
+        return 0;
+      case 1:
+        return signed ? buffer.get() : 0xFF & buffer.get();
+      case 2:
+        return signed ? buffer.getShort() : 0xFFFF & buffer.getShort();
+      case 4:
+        return signed ? buffer.getInt() : 0xFFFFFFFFL & buffer.getInt();
+      case 8:
+        return buffer.getLong();
+      default: {
+        long x = 0;
+        if(buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+          for(int i = 0; i < intSize; i++) {
+            x |= (0xFFL & buffer.get()) << (8 * i);
+          }
+        } else {
+          for(int i = 0; i < intSize; i++) {
+            x = (x << 8) | (0xFF & buffer.get());
+          }
+        }
+        if(signed) {
+          int shift = 64 - 8 * intSize;
+          x = (x << shift) >> shift;
+        }
+        return x;
+      }
+    }
+  }
+  
+  private boolean fitsInt(long x) {
+    if(!signed && intSize == 8 && x < 0) return false;
+    return Integer.MIN_VALUE <= x && x <= Integer.MAX_VALUE;
+  }
+  
+  @Override
+  public int parseInt(ByteBuffer buffer, BHeader header) {
+    if(intSize > 8) {
+      return super.parseInt(buffer, header);
+    }
+    long x = raw_parse_long(buffer);
+    if(!allownegative && signed && x < 0) {
+      throw new IllegalStateException("Illegal number");
+    }
+    if(!fitsInt(x)) {
+      throw outOfRange();
+    }
+    if(header.debug){
+      System.out.println("-- parsed <integer> " + x);
+    }
+    return (int) x;
+  }
+  
   protected void raw_write(OutputStream out, BHeader header, BInteger object) throws IOException {
     byte[] bytes = object.littleEndianBytes(intSize);
     if(header.lheader.endianness == LHeader.LEndianness.LITTLE) {
@@ -104,6 +182,11 @@ class BIntegerType50 extends BIntegerType {
     return value;
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, intSize);
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, BInteger object) throws IOException {
     raw_write(out, header, object);
@@ -122,14 +205,19 @@ class BIntegerType54 extends BIntegerType {
     
   }
   
-  @Override
-  public BInteger parse(ByteBuffer buffer, BHeader header) {
+  private static long parseLong(ByteBuffer buffer) {
     long x = 0;
     byte b;
     do {
       b = buffer.get();
       x = (x << 7) | (b & 0x7F);
     } while((b & 0x80) == 0);
+    return x;
+  }
+  
+  @Override
+  public BInteger parse(ByteBuffer buffer, BHeader header) {
+    long x = parseLong(buffer);
     if(Integer.MIN_VALUE <= x && x <= Integer.MAX_VALUE) {
       return new BInteger((int) x);
     } else {
@@ -137,6 +225,21 @@ class BIntegerType54 extends BIntegerType {
     }
   }
   
+  @Override
+  public int parseInt(ByteBuffer buffer, BHeader header) {
+    long x = parseLong(buffer);
+    if(Integer.MIN_VALUE <= x && x <= Integer.MAX_VALUE) {
+      return (int) x;
+    } else {
+      throw outOfRange();
+    }
+  }
+  
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    while((buffer.get() & 0x80) == 0);
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, BInteger object) throws IOException {
     byte[] bytes = object.compressedBytes();
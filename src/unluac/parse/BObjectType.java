@@ -2,10 +2,9 @@ package unluac.parse;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 
 import unluac.Version;
 
@@ -15,47 +14,93 @@ abstract public class BObjectType<T extends BObject>  {
 
   abstract public void write(OutputStream out, BHeader header, T object) throws IOException;
   
-  public final BList<T> parseList(ByteBuffer buffer, BHeader header) {
-    return parseList(buffer, header, Version.ListLengthMode.STRICT, null);
+  /**
+   * Moves the buffer past one object without decoding it. By default this
+   * parses and discards the object; types that can find their end more
+   * cheaply override it.
+   */
+  public void skip(ByteBuffer buffer, BHeader header) {
+    parse(buffer, header);
   }
   
-  public final BList<T> parseList(ByteBuffer buffer, BHeader header, Version.ListLengthMode mode) {
-    return parseList(buffer, header, mode, null);
+  public final T[] parseList(ByteBuffer buffer, BHeader header, T[] empty) {
+    return parseList(buffer, header, Version.ListLengthMode.STRICT, -1, empty);
   }
   
-  public final BList<T> parseList(ByteBuffer buffer, BHeader header, Version.ListLengthMode mode, BInteger knownLength) {
-    BInteger length = header.integer.parse(buffer, header);
+  public final T[] parseList(ByteBuffer buffer, BHeader header, Version.ListLengthMode mode, T[] empty) {
+    return parseList(buffer, header, mode, -1, empty);
+  }
+  
+  /**
+   * Parses a length-prefixed list straight into an array of the same type as
+   * the given (empty) array.
+   */
+  public final T[] parseList(ByteBuffer buffer, BHeader header, Version.ListLengthMode mode, int knownLength, T[] empty) {
+    int length = header.integer.parseInt(buffer, header);
     switch(mode) {
       case STRICT:
         break;
       case ALLOW_NEGATIVE:
-        if(length.signum() < 0) length = new BInteger(0);
+        if(length < 0) length = 0;
         break;
       case IGNORE:
-        if(knownLength == null) throw new IllegalStateException();
-        if(length.signum() != 0) length = knownLength;
+        if(knownLength < 0) throw new IllegalStateException();
+        if(length != 0) length = knownLength;
         break;
     }
-    return parseList(buffer, header, length);
+    return parseList(buffer, header, length, empty);
   }
   
-  public final BList<T> parseList(final ByteBuffer buffer, final BHeader header, BInteger length) {
-    final List<T> values = new ArrayList<T>();
-    length.iterate(new Runnable() {
-      
-      @Override
-      public void run() {
-        values.add(parse(buffer, header));
+  public final T[] parseList(ByteBuffer buffer, BHeader header, int length, T[] empty) {
+    if(length < 0) {
+      throw new IllegalStateException("Illegal negative list length");
+    }
+    T[] values = Arrays.copyOf(empty, length);
+    int count = 0;
+    for(int i = 0; i < length; i++) {
+      T value = parse(buffer, header);
+      // Leave out the null values that used to be temporary locals
+      if(value != null) {
+        values[count++] = value;
       }
-      
-    });
-    
-    // Remove all the null values that used to be temporary locals
-    while(values.contains(null)) {
-      values.remove(null);
-      length = length.decrement();
     }
-    return new BList<T>(length, values);
+    return count == length ? values : Arrays.copyOf(values, count);
+  }
+  
+  public final void skipList(ByteBuffer buffer, BHeader header) {
+    skipList(buffer, header, Version.ListLengthMode.STRICT, -1);
+  }
+  
+  public final int skipList(ByteBuffer buffer, BHeader header, Version.ListLengthMode mode, int knownLength) {
+    int length = header.integer.parseInt(buffer, header);
+    switch(mode) {
+      case STRICT:
+        break;
+      case ALLOW_NEGATIVE:
+        if(length < 0) length = 0;
+        break;
+      case IGNORE:
+        if(knownLength < 0) throw new IllegalStateException();
+        if(length != 0) length = knownLength;
+        break;
+    }
+    if(length < 0) {
+      throw new IllegalStateException("Illegal negative list length");
+    }
+    for(int i = 0; i < length; i++) {
+      skip(buffer, header);
+    }
+    return length;
+  }
+  
+  static void skipBytes(ByteBuffer buffer, int length) {
+    if(length < 0) {
+      throw new IllegalStateException("Illegal negative list length");
+    }
+    if(length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    buffer.position(buffer.position() + length);
   }
   
   public final void writeList(OutputStream out, BHeader header, T[] array) throws IOException {
@@ -65,12 +110,4 @@ abstract public class BObjectType<T extends BObject>  {
     }
   }
   
-  public final void writeList(OutputStream out, BHeader header, BList<T> blist) throws IOException {
-    header.integer.write(out, header, blist.length);
-    Iterator<T> it = blist.iterator();
-    while(it.hasNext()) {
-      write(out, header, it.next());
-    }
-  }
-  
 }
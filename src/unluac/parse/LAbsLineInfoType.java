@@ -8,11 +8,17 @@ public class LAbsLineInfoType extends BObjectType<LAbsLineInfo> {
 
   @Override
   public LAbsLineInfo parse(ByteBuffer buffer, BHeader header) {
-    int pc = header.integer.parse(buffer, header).asInt();
-    int line = header.integer.parse(buffer, header).asInt();
+    int pc = header.integer.parseInt(buffer, header);
+    int line = header.integer.parseInt(buffer, header);
     return new LAbsLineInfo(pc, line);
   }
 
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+  }
+
   @Override
   public void write(OutputStream out, BHeader header, LAbsLineInfo object) throws IOException {
     header.integer.write(out, header, new BInteger(object.pc));
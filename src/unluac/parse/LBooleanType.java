@@ -21,6 +21,11 @@ public class LBooleanType extends BObjectType<LBoolean> {
     }
   }
 
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, 1);
+  }
+
   @Override
   public void write(OutputStream out, BHeader header, LBoolean object) throws IOException {
     int value = object.value() ? 1 : 0;
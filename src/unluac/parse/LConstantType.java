@@ -50,6 +50,40 @@ public class LConstantType extends BObjectType<LObject> {
     }
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    int typecode = 0xFF & buffer.get();
+    Type type = header.typemap.get(typecode);
+    if(type == null) {
+      throw new RuntimeException("unmapped type code " + typecode);
+    }
+    switch(type) {
+      case NIL:
+      case FALSE:
+      case TRUE:
+        break;
+      case BOOLEAN:
+        header.bool.skip(buffer, header);
+        break;
+      case NUMBER:
+        header.number.skip(buffer, header);
+        break;
+      case FLOAT:
+        header.lfloat.skip(buffer, header);
+        break;
+      case INTEGER:
+        header.linteger.skip(buffer, header);
+        break;
+      case STRING:
+      case SHORT_STRING:
+      case LONG_STRING:
+        header.string.skip(buffer, header);
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, LObject object) throws IOException {
     if(object instanceof LNil) {
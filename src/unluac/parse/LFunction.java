@@ -1,12 +1,19 @@
 package unluac.parse;
 
+import unluac.decompile.Code;
+
+/**
+ * A function of a parsed chunk. Its fields are only written while it is
+ * parsed or loaded; what the decompiler works out about a function is kept
+ * by the decompiler, so a parsed chunk can be shared between threads and
+ * decompiled any number of times.
+ */
 public class LFunction extends BObject {
   
   public BHeader header;
   public LString name;
   public int linedefined;
   public int lastlinedefined;
-  public LFunction parent;
   public int[] code;
   public int[] lines;
   public LAbsLineInfo[] abslineinfo;
@@ -18,8 +25,14 @@ public class LFunction extends BObject {
   public int numUpvalues;
   public int numParams;
   public int vararg;
-  public boolean stripped;
-  public int level;
+  
+  private LFunction parent;
+  private boolean stripped;
+  
+  /* Where the function starts in the chunk while it has not been loaded. */
+  private int offset;
+  
+  private Code decoded;
   
   public LFunction(BHeader header, LString name, int linedefined, int lastlinedefined, int[] code, int[] lines, LAbsLineInfo[] abslineinfo, LLocal[] locals, LObject[] constants, LUpvalue[] upvalues, LFunction[] functions, int maximumStackSize, int numUpValues, int numParams, int vararg) {
     this.header = header;
@@ -37,14 +50,119 @@ public class LFunction extends BObject {
     this.numUpvalues = numUpValues;
     this.numParams = numParams;
     this.vararg = vararg;
-    this.stripped = false;
+    this.stripped = lines.length == 0 && locals.length == 0;
+    this.offset = -1;
+    for(LFunction child : functions) {
+      child.parent = this;
+    }
+  }
+  
+  /**
+   * Creates a function that has only been skimmed; nothing but its header is
+   * available until it is loaded.
+   */
+  LFunction(BHeader header, int offset) {
+    this.header = header;
+    this.offset = offset;
+  }
+  
+  public synchronized boolean isLoaded() {
+    return offset < 0;
+  }
+  
+  /**
+   * Decodes a function that was skimmed by a lazy parse. Its nested functions
+   * are skimmed in turn. Does nothing if the function is already loaded.
+   */
+  public synchronized void load() {
+    if(offset < 0) return;
+    LFunction body = header.function.parseAt(header, offset);
+    name = body.name;
+    linedefined = body.linedefined;
+    lastlinedefined = body.lastlinedefined;
+    code = body.code;
+    lines = body.lines;
+    abslineinfo = body.abslineinfo;
+    locals = body.locals;
+    constants = body.constants;
+    upvalues = body.upvalues;
+    functions = body.functions;
+    maximumStackSize = body.maximumStackSize;
+    numUpvalues = body.numUpvalues;
+    numParams = body.numParams;
+    vararg = body.vararg;
+    stripped = body.stripped;
+    for(LFunction child : functions) {
+      child.parent = this;
+    }
+    offset = -1;
   }
   
-  public void setLevel(int level) {
-    this.level = level;
-    for(LFunction f : functions) {
-      f.setLevel(level + 1);
+  /**
+   * Loads this function and all of its nested functions.
+   */
+  public void loadAll() {
+    load();
+    for(LFunction child : functions) {
+      child.loadAll();
     }
   }
   
+  /**
+   * Returns the instructions of this function decoded for analysis, decoding
+   * them on first use. The function must be loaded.
+   */
+  public synchronized Code getDecoded() {
+    if(decoded == null) {
+      decoded = new Code(this);
+    }
+    return decoded;
+  }
+  
+  /**
+   * Returns the function this one is nested in, or null for the main function.
+   */
+  public LFunction getParent() {
+    return parent;
+  }
+  
+  /**
+   * Returns the nesting depth of this function, which is 1 for the main
+   * function.
+   */
+  public int getLevel() {
+    return parent == null ? 1 : parent.getLevel() + 1;
+  }
+  
+  /**
+   * Returns the function named by a path as the disassembler writes it, such
+   * as main/f0/f2, where this is the main function, or null if there is no
+   * such function. Only the functions along the path are loaded.
+   */
+  public LFunction find(String path) {
+    String[] names = path.split("/");
+    if(!names[0].equals("main")) return null;
+    LFunction function = this;
+    for(int i = 1; i < names.length; i++) {
+      function.load();
+      int index;
+      try {
+        index = names[i].startsWith("f") ? Integer.parseInt(names[i].substring(1)) : -1;
+      } catch(NumberFormatException e) {
+        index = -1;
+      }
+      if(index < 0 || index >= function.functions.length) return null;
+      function = function.functions[index];
+    }
+    function.load();
+    return function;
+  }
+  
+  /**
+   * Returns true if the function has neither line numbers nor locals.
+   */
+  public boolean isStripped() {
+    return stripped;
+  }
+  
 }
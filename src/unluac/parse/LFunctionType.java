@@ -2,6 +2,7 @@ package unluac.parse;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
@@ -14,6 +15,13 @@ import unluac.decompile.Op;
 
 abstract public class LFunctionType extends BObjectType<LFunction> {
   
+  protected static final LObject[] NO_CONSTANTS = new LObject[0];
+  protected static final LFunction[] NO_FUNCTIONS = new LFunction[0];
+  protected static final LUpvalue[] NO_UPVALUES = new LUpvalue[0];
+  protected static final LLocal[] NO_LOCALS = new LLocal[0];
+  protected static final LString[] NO_STRINGS = new LString[0];
+  protected static final LAbsLineInfo[] NO_ABSLINEINFO = new LAbsLineInfo[0];
+  
   public static LFunctionType get(Version.FunctionType type) {
     switch(type) {
       case LUA50: return new LFunctionType50();
@@ -36,16 +44,33 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
     int maximumStackSize;
     int length;
     int[] code;
-    BList<LObject> constants;
-    BList<LFunction> functions;
-    BList<BInteger> lines;
-    BList<LAbsLineInfo> abslineinfo;
-    BList<LLocal> locals;
+    LObject[] constants;
+    LFunction[] functions;
+    int[] lines;
+    LAbsLineInfo[] abslineinfo;
+    LLocal[] locals;
     LUpvalue upvalues[];
   }
   
+  /**
+   * Parses a function. In lazy mode only its position is recorded and the
+   * function is skipped over; it is decoded by {@link LFunction#load()}.
+   */
   @Override
   public LFunction parse(ByteBuffer buffer, BHeader header) {
+    if(header.lazy) {
+      int offset = buffer.position();
+      skip(buffer, header);
+      return new LFunction(header, offset);
+    }
+    return parseBody(buffer, header);
+  }
+  
+  /**
+   * Parses a function itself. In lazy mode its nested functions are only
+   * skimmed.
+   */
+  public LFunction parseBody(ByteBuffer buffer, BHeader header) {
     if(header.debug) {
       System.out.println("-- beginning to parse function");
     }
@@ -54,33 +79,55 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
     }
     LFunctionParseState s = new LFunctionParseState();
     parse_main(buffer, header, s);
-    int[] lines = new int[s.lines.length.asInt()];
-    for(int i = 0; i < lines.length; i++) {
-      lines[i] = s.lines.get(i).asInt();
-    }
-    LAbsLineInfo[] abslineinfo = null;
-    if(s.abslineinfo != null) {
-      abslineinfo = s.abslineinfo.asArray(new LAbsLineInfo[s.abslineinfo.length.asInt()]);
-    }
-    LFunction lfunc = new LFunction(header, s.name, s.lineBegin, s.lineEnd, s.code, lines, abslineinfo, s.locals.asArray(new LLocal[Math.max(0, s.locals.length.asInt())]), s.constants.asArray(new LObject[Math.max(0, s.constants.length.asInt())]), s.upvalues, s.functions.asArray(new LFunction[Math.max(0, s.functions.length.asInt())]), s.maximumStackSize, s.lenUpvalues, s.lenParameter, s.vararg);
-    for(LFunction child : lfunc.functions) {
-      child.parent = lfunc;
-    }
-    if(s.lines.length.asInt() == 0 && s.locals.length.asInt() == 0) {
-      lfunc.stripped = true;
-    }
-    return lfunc;
+    return new LFunction(header, s.name, s.lineBegin, s.lineEnd, s.code, s.lines, s.abslineinfo, s.locals, s.constants, s.upvalues, s.functions, s.maximumStackSize, s.lenUpvalues, s.lenParameter, s.vararg);
+  }
+  
+  LFunction parseAt(BHeader header, int offset) {
+    ByteBuffer buffer = header.buffer.duplicate();
+    buffer.order(header.buffer.order());
+    buffer.position(offset);
+    return parseBody(buffer, header);
+  }
+  
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skip_main(buffer, header);
   }
   
   abstract public List<Directive> get_directives();
   
   abstract protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s);
   
+  abstract protected void skip_main(ByteBuffer buffer, BHeader header);
+  
+  protected void skip_code(ByteBuffer buffer, BHeader header) {
+    int length = header.integer.parseInt(buffer, header);
+    if(length > buffer.remaining() / 4) {
+      throw new BufferUnderflowException();
+    }
+    skipBytes(buffer, 4 * length);
+  }
+  
+  protected void skip_constants(ByteBuffer buffer, BHeader header) {
+    header.constant.skipList(buffer, header);
+    header.function.skipList(buffer, header);
+  }
+  
+  protected int skip_upvalues(ByteBuffer buffer, BHeader header) {
+    return header.upvalue.skipList(buffer, header, Version.ListLengthMode.STRICT, -1);
+  }
+  
+  protected void skip_debug(ByteBuffer buffer, BHeader header, int lenUpvalues) {
+    header.integer.skipList(buffer, header);
+    header.local.skipList(buffer, header, header.version.locallengthmode.get(), -1);
+    header.string.skipList(buffer, header, header.version.upvaluelengthmode.get(), lenUpvalues);
+  }
+  
   protected void parse_code(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     if(header.debug) {
       System.out.println("-- beginning to parse bytecode list");
     }
-    s.length = header.integer.parse(buffer, header).asInt();
+    s.length = header.integer.parseInt(buffer, header);
     s.code = new int[s.length];
     for(int i = 0; i < s.length; i++) {
       s.code[i] = buffer.getInt();
@@ -120,11 +167,11 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
     if(header.debug) {
       System.out.println("-- beginning to parse constants list");
     }
-    s.constants = header.constant.parseList(buffer, header);
+    s.constants = header.constant.parseList(buffer, header, NO_CONSTANTS);
     if(header.debug) {
       System.out.println("-- beginning to parse functions list");
     }
-    s.functions = header.function.parseList(buffer, header);
+    s.functions = header.function.parseList(buffer, header, NO_FUNCTIONS);
   }
   
   protected void write_constants(OutputStream out, BHeader header, LFunction object) throws IOException {
@@ -135,14 +182,13 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
   protected void create_upvalues(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     s.upvalues = new LUpvalue[s.lenUpvalues];
     for(int i = 0; i < s.lenUpvalues; i++) {
-      s.upvalues[i] = new LUpvalue();
+      s.upvalues[i] = new LUpvalue(false, 0, 0);
     }
   }
   
   protected void parse_upvalues(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
-    BList<LUpvalue> upvalues = header.upvalue.parseList(buffer, header);
-    s.lenUpvalues = upvalues.length.asInt();
-    s.upvalues = upvalues.asArray(new LUpvalue[s.lenUpvalues]);
+    s.upvalues = header.upvalue.parseList(buffer, header, NO_UPVALUES);
+    s.lenUpvalues = s.upvalues.length;
   }
   
   protected void write_upvalues(OutputStream out, BHeader header, LFunction object) throws IOException {
@@ -153,11 +199,11 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
     if(header.debug) {
       System.out.println("-- beginning to parse source lines list");
     }
-    s.lines = header.integer.parseList(buffer, header);
+    s.lines = header.integer.parseIntList(buffer, header);
     if(header.debug) {
       System.out.println("-- beginning to parse locals list");
     }
-    s.locals = header.local.parseList(buffer, header, header.version.locallengthmode.get());
+    s.locals = header.local.parseList(buffer, header, header.version.locallengthmode.get(), NO_LOCALS);
     parse_upvalue_names(buffer, header, s);
   }
   
@@ -165,10 +211,10 @@ abstract public class LFunctionType extends BObjectType<LFunction> {
     if(header.debug) {
       System.out.println("-- beginning to parse upvalue names list");
     }
-    BList<LString> upvalueNames = header.string.parseList(buffer, header, header.version.upvaluelengthmode.get(), new BInteger(s.lenUpvalues));
-    for(int i = 0; i < Math.min(s.upvalues.length, upvalueNames.length.asInt()); i++) {
-      s.upvalues[i].bname = upvalueNames.get(i);
-      s.upvalues[i].name = s.upvalues[i].bname.deref();
+    LString[] upvalueNames = header.string.parseList(buffer, header, header.version.upvaluelengthmode.get(), s.lenUpvalues, NO_STRINGS);
+    for(int i = 0; i < Math.min(s.upvalues.length, upvalueNames.length); i++) {
+      LUpvalue upvalue = s.upvalues[i];
+      s.upvalues[i] = new LUpvalue(upvalue.instack, upvalue.idx, upvalue.kind, upvalueNames[i], upvalueNames[i].deref());
     }
   }
   
@@ -199,7 +245,7 @@ class LFunctionType50 extends LFunctionType {
   @Override
   protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     s.name = header.string.parse(buffer, header);
-    s.lineBegin = header.integer.parse(buffer, header).asInt();
+    s.lineBegin = header.integer.parseInt(buffer, header);
     s.lineEnd = 0;
     s.lenUpvalues = 0xFF & buffer.get();
     create_upvalues(buffer, header, s);
@@ -211,6 +257,17 @@ class LFunctionType50 extends LFunctionType {
     parse_code(buffer, header, s);
   }
   
+  @Override
+  protected void skip_main(ByteBuffer buffer, BHeader header) {
+    header.string.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    int lenUpvalues = 0xFF & buffer.get();
+    skipBytes(buffer, 3);
+    skip_debug(buffer, header, lenUpvalues);
+    skip_constants(buffer, header);
+    skip_code(buffer, header);
+  }
+  
   @Override
   public List<Directive> get_directives() {
     return Arrays.asList(new Directive[] {
@@ -241,8 +298,8 @@ class LFunctionType51 extends LFunctionType {
   
   protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     s.name = header.string.parse(buffer, header);
-    s.lineBegin = header.integer.parse(buffer, header).asInt();
-    s.lineEnd = header.integer.parse(buffer, header).asInt();
+    s.lineBegin = header.integer.parseInt(buffer, header);
+    s.lineEnd = header.integer.parseInt(buffer, header);
     s.lenUpvalues = 0xFF & buffer.get();
     create_upvalues(buffer, header, s);
     s.lenParameter = 0xFF & buffer.get();
@@ -253,6 +310,18 @@ class LFunctionType51 extends LFunctionType {
     parse_debug(buffer, header, s);
   }
   
+  @Override
+  protected void skip_main(ByteBuffer buffer, BHeader header) {
+    header.string.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    int lenUpvalues = 0xFF & buffer.get();
+    skipBytes(buffer, 3);
+    skip_code(buffer, header);
+    skip_constants(buffer, header);
+    skip_debug(buffer, header, lenUpvalues);
+  }
+  
   @Override
   public List<Directive> get_directives() {
     return Arrays.asList(new Directive[] {
@@ -284,8 +353,8 @@ class LFunctionType51 extends LFunctionType {
 class LFunctionType52 extends LFunctionType {
   
   protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
-    s.lineBegin = header.integer.parse(buffer, header).asInt();
-    s.lineEnd = header.integer.parse(buffer, header).asInt();
+    s.lineBegin = header.integer.parseInt(buffer, header);
+    s.lineEnd = header.integer.parseInt(buffer, header);
     s.lenParameter = 0xFF & buffer.get();
     s.vararg = 0xFF & buffer.get();
     s.maximumStackSize = 0xFF & buffer.get();
@@ -296,6 +365,18 @@ class LFunctionType52 extends LFunctionType {
     parse_debug(buffer, header, s);
   }
   
+  @Override
+  protected void skip_main(ByteBuffer buffer, BHeader header) {
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    skipBytes(buffer, 3);
+    skip_code(buffer, header);
+    skip_constants(buffer, header);
+    int lenUpvalues = skip_upvalues(buffer, header);
+    header.string.skip(buffer, header);
+    skip_debug(buffer, header, lenUpvalues);
+  }
+  
   @Override
   public List<Directive> get_directives() {
     return Arrays.asList(new Directive[] {
@@ -328,18 +409,31 @@ class LFunctionType53 extends LFunctionType {
   
   protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     s.name = header.string.parse(buffer, header); //TODO: psource
-    s.lineBegin = header.integer.parse(buffer, header).asInt();
-    s.lineEnd = header.integer.parse(buffer, header).asInt();
+    s.lineBegin = header.integer.parseInt(buffer, header);
+    s.lineEnd = header.integer.parseInt(buffer, header);
     s.lenParameter = 0xFF & buffer.get();
     s.vararg = 0xFF & buffer.get();
     s.maximumStackSize = 0xFF & buffer.get();
     parse_code(buffer, header, s);
-    s.constants = header.constant.parseList(buffer, header);
+    s.constants = header.constant.parseList(buffer, header, NO_CONSTANTS);
     parse_upvalues(buffer, header, s);
-    s.functions = header.function.parseList(buffer, header);
+    s.functions = header.function.parseList(buffer, header, NO_FUNCTIONS);
     parse_debug(buffer, header, s);
   }
   
+  @Override
+  protected void skip_main(ByteBuffer buffer, BHeader header) {
+    header.string.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    skipBytes(buffer, 3);
+    skip_code(buffer, header);
+    header.constant.skipList(buffer, header);
+    int lenUpvalues = skip_upvalues(buffer, header);
+    header.function.skipList(buffer, header);
+    skip_debug(buffer, header, lenUpvalues);
+  }
+  
   @Override
   public List<Directive> get_directives() {
     return Arrays.asList(new Directive[] {
@@ -371,15 +465,25 @@ class LFunctionType53 extends LFunctionType {
 
 class LFunctionType54 extends LFunctionType {
   
+  private static final BIntegerType LINE_DELTA = new BIntegerType50(false, 1, false);
+  
   @Override
   protected void parse_debug(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     // TODO: process line info correctly
-    s.lines = (new BIntegerType50(false, 1, false)).parseList(buffer, header);
-    s.abslineinfo = header.abslineinfo.parseList(buffer, header);
-    s.locals = header.local.parseList(buffer, header);
+    s.lines = LINE_DELTA.parseIntList(buffer, header);
+    s.abslineinfo = header.abslineinfo.parseList(buffer, header, NO_ABSLINEINFO);
+    s.locals = header.local.parseList(buffer, header, NO_LOCALS);
     parse_upvalue_names(buffer, header, s);
   }
   
+  @Override
+  protected void skip_debug(ByteBuffer buffer, BHeader header, int lenUpvalues) {
+    skipBytes(buffer, header.integer.parseInt(buffer, header));
+    header.abslineinfo.skipList(buffer, header);
+    header.local.skipList(buffer, header);
+    header.string.skipList(buffer, header, header.version.upvaluelengthmode.get(), lenUpvalues);
+  }
+  
   @Override
   protected void write_debug(OutputStream out, BHeader header, LFunction object) throws IOException {
     header.integer.write(out, header, new BInteger(object.lines.length));
@@ -404,18 +508,31 @@ class LFunctionType54 extends LFunctionType {
   
   protected void parse_main(ByteBuffer buffer, BHeader header, LFunctionParseState s) {
     s.name = header.string.parse(buffer, header);
-    s.lineBegin = header.integer.parse(buffer, header).asInt();
-    s.lineEnd = header.integer.parse(buffer, header).asInt();
+    s.lineBegin = header.integer.parseInt(buffer, header);
+    s.lineEnd = header.integer.parseInt(buffer, header);
     s.lenParameter = 0xFF & buffer.get();
     s.vararg = 0xFF & buffer.get();
     s.maximumStackSize = 0xFF & buffer.get();
     parse_code(buffer, header, s);
-    s.constants = header.constant.parseList(buffer, header);
+    s.constants = header.constant.parseList(buffer, header, NO_CONSTANTS);
     parse_upvalues(buffer, header, s);
-    s.functions = header.function.parseList(buffer, header);
+    s.functions = header.function.parseList(buffer, header, NO_FUNCTIONS);
     parse_debug(buffer, header, s);
   }
   
+  @Override
+  protected void skip_main(ByteBuffer buffer, BHeader header) {
+    header.string.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    skipBytes(buffer, 3);
+    skip_code(buffer, header);
+    header.constant.skipList(buffer, header);
+    int lenUpvalues = skip_upvalues(buffer, header);
+    header.function.skipList(buffer, header);
+    skip_debug(buffer, header, lenUpvalues);
+  }
+  
   @Override
   public List<Directive> get_directives() {
     return Arrays.asList(new Directive[] {
@@ -10,12 +10,12 @@ public class LLocalType extends BObjectType<LLocal> {
   @Override
   public LLocal parse(ByteBuffer buffer, BHeader header) {
     LString name = header.string.parse(buffer, header);
-    BInteger start = header.integer.parse(buffer, header);
-    BInteger end = header.integer.parse(buffer, header);
+    int start = header.integer.parseInt(buffer, header);
+    int end = header.integer.parseInt(buffer, header);
     if(header.debug) {
       System.out.print("-- parsing local, name: ");
       System.out.print(name);
-      System.out.print(" from " + start.asInt() + " to " + end.asInt());
+      System.out.print(" from " + start + " to " + end);
       System.out.println();
     }
     // Get rid of the temporary locals always named "(temp)" by pdc
@@ -23,6 +23,13 @@ public class LLocalType extends BObjectType<LLocal> {
     return new LLocal(name, start, end);
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    header.string.skip(buffer, header);
+    header.integer.skip(buffer, header);
+    header.integer.skip(buffer, header);
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, LLocal object) throws IOException {
     header.string.write(out, header, object.name);
@@ -46,6 +46,11 @@ public class LNumberType extends BObjectType<LNumber> {
     throw new IllegalStateException("The input chunk has an unsupported Lua number format");
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, size);
+  }
+  
   @Override
   public LNumber parse(ByteBuffer buffer, BHeader header) {
     LNumber value = null;
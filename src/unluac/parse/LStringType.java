@@ -2,7 +2,9 @@ package unluac.parse;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import unluac.Version;
 
@@ -18,41 +20,43 @@ public abstract class LStringType extends BObjectType<LString> {
     }
   }
   
-  protected ThreadLocal<StringBuilder> b = new ThreadLocal<StringBuilder>() {
-    
-    @Override
-    protected StringBuilder initialValue() {
-      return new StringBuilder();  
+  /**
+   * Reads the given number of bytes as a string, one char per byte (Latin-1),
+   * so writing the chars back out reproduces the original bytes exactly.
+   */
+  protected static String readString(ByteBuffer buffer, int length) {
+    if(length < 0) {
+      throw new IllegalStateException("Illegal negative string length");
     }
-
-  };
+    String s;
+    if(buffer.hasArray()) {
+      if(length > buffer.remaining()) {
+        throw new BufferUnderflowException();
+      }
+      s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.ISO_8859_1);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      s = new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    return s;
+  }
   
 }
 
 class LStringType50 extends LStringType {
   
   @Override
-  public LString parse(final ByteBuffer buffer, BHeader header) {
-    BInteger sizeT = header.sizeT.parse(buffer, header);
-    final StringBuilder b = this.b.get();
-    b.setLength(0);
-    sizeT.iterate(new Runnable() {
-      
-      @Override
-      public void run() {
-        b.append((char) (0xFF & buffer.get()));
-      }
-      
-    });
-    if(b.length() == 0) {
+  public LString parse(ByteBuffer buffer, BHeader header) {
+    int size = header.sizeT.parseInt(buffer, header);
+    if(size == 0) {
       return LString.NULL;
     } else {
-      char last = b.charAt(b.length() - 1);
-      if(last != '\0') {
+      String s = readString(buffer, size - 1);
+      if(buffer.get() != 0) {
         throw new IllegalStateException("String value does not have a null terminator");
       }
-      b.delete(b.length() - 1, b.length());
-      String s = b.toString();
       if(header.debug) {
         System.out.println("-- parsed <string> \"" + s + "\"");
       }
@@ -60,6 +64,11 @@ class LStringType50 extends LStringType {
     }
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, header.sizeT.parseInt(buffer, header));
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, LString string) throws IOException {
     int len = string.value.length();
@@ -78,37 +87,27 @@ class LStringType50 extends LStringType {
 class LStringType53 extends LStringType {
   
   @Override
-  public LString parse(final ByteBuffer buffer, BHeader header) {
-    BInteger sizeT;
+  public LString parse(ByteBuffer buffer, BHeader header) {
     int size = 0xFF & buffer.get();
     if(size == 0xFF) {
-      sizeT = header.sizeT.parse(buffer, header);
-    } else {
-      sizeT = new BInteger(size);
+      size = header.sizeT.parseInt(buffer, header);
     }
-    final StringBuilder b = this.b.get();
-    b.setLength(0);
-    sizeT.iterate(new Runnable() {
-      
-      boolean first = true;
-      
-      @Override
-      public void run() {
-        if(!first) {
-          b.append((char) (0xFF & buffer.get()));
-        } else {
-          first = false;
-        }
-      }
-      
-    });
-    String s = b.toString();
+    String s = readString(buffer, size == 0 ? 0 : size - 1);
     if(header.debug) {
       System.out.println("-- parsed <string> \"" + s + "\"");
     }
     return new LString(s);
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    int size = 0xFF & buffer.get();
+    if(size == 0xFF) {
+      size = header.sizeT.parseInt(buffer, header);
+    }
+    skipBytes(buffer, size == 0 ? 0 : size - 1);
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, LString string) throws IOException {
     int len = string.value.length() + 1;
@@ -127,31 +126,21 @@ class LStringType53 extends LStringType {
 class LStringType54 extends LStringType {
   
   @Override
-  public LString parse(final ByteBuffer buffer, BHeader header) {
-    BInteger sizeT = header.sizeT.parse(buffer, header);
-    final StringBuilder b = this.b.get();
-    b.setLength(0);
-    sizeT.iterate(new Runnable() {
-      
-      boolean first = true;
-      
-      @Override
-      public void run() {
-        if(!first) {
-          b.append((char) (0xFF & buffer.get()));
-        } else {
-          first = false;
-        }
-      }
-      
-    });
-    String s = b.toString();
+  public LString parse(ByteBuffer buffer, BHeader header) {
+    int size = header.sizeT.parseInt(buffer, header);
+    String s = readString(buffer, size == 0 ? 0 : size - 1);
     if(header.debug) {
       System.out.println("-- parsed <string> \"" + s + "\"");
     }
     return new LString(s);
   }
   
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    int size = header.sizeT.parseInt(buffer, header);
+    skipBytes(buffer, size == 0 ? 0 : size - 1);
+  }
+  
   @Override
   public void write(OutputStream out, BHeader header, LString string) throws IOException {
     header.sizeT.write(out, header, header.sizeT.create(string.value.length() + 1));
@@ -1,13 +1,29 @@
 package unluac.parse;
 
+/**
+ * An upvalue of a parsed function. Upvalues are immutable; the names the
+ * decompiler infers for unnamed upvalues are kept in its own tables.
+ */
 public class LUpvalue extends BObject {
 
-  public boolean instack;
-  public int idx;
+  public final boolean instack;
+  public final int idx;
   
-  public String name;
-  public LString bname;
-  public int kind;
+  public final String name;
+  public final LString bname;
+  public final int kind;
+  
+  public LUpvalue(boolean instack, int idx, int kind) {
+    this(instack, idx, kind, null, null);
+  }
+  
+  public LUpvalue(boolean instack, int idx, int kind, LString bname, String name) {
+    this.instack = instack;
+    this.idx = idx;
+    this.kind = kind;
+    this.bname = bname;
+    this.name = name;
+  }
   
   public boolean equals(Object obj) {
     if(obj instanceof LUpvalue) {
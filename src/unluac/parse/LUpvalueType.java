@@ -22,11 +22,14 @@ class LUpvalueType50 extends LUpvalueType {
 
   @Override
   public LUpvalue parse(ByteBuffer buffer, BHeader header) {
-    LUpvalue upvalue = new LUpvalue();
-    upvalue.instack = buffer.get() != 0;
-    upvalue.idx = 0xFF & buffer.get();
-    upvalue.kind = -1;
-    return upvalue;
+    boolean instack = buffer.get() != 0;
+    int idx = 0xFF & buffer.get();
+    return new LUpvalue(instack, idx, -1);
+  }
+  
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, 2);
   }
   
   @Override
@@ -40,11 +43,15 @@ class LUpvalueType54 extends LUpvalueType {
 
   @Override
   public LUpvalue parse(ByteBuffer buffer, BHeader header) {
-    LUpvalue upvalue = new LUpvalue();
-    upvalue.instack = buffer.get() != 0;
-    upvalue.idx = 0xFF & buffer.get();
-    upvalue.kind = 0xFF & buffer.get();
-    return upvalue;
+    boolean instack = buffer.get() != 0;
+    int idx = 0xFF & buffer.get();
+    int kind = 0xFF & buffer.get();
+    return new LUpvalue(instack, idx, kind);
+  }
+  
+  @Override
+  public void skip(ByteBuffer buffer, BHeader header) {
+    skipBytes(buffer, 3);
   }
   
   @Override
@@ -0,0 +1,192 @@
+package unluac.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the compiled Lua chunks stored in a Playdate .pdz container. The file
+ * is read front to back and compressed entries are inflated in memory; entries
+ * that are not Lua bytecode (images, sounds, ...) are skipped.
+ */
+public class PdzFile {
+  
+  public static final String EXTENSION = ".pdz";
+  
+  private static final byte[] MAGIC = "Playdate PDZ".getBytes(Charset.forName("US-ASCII"));
+  private static final int FLAG_ENCRYPTED = 0x40000000;
+  private static final int ENTRY_COMPRESSED = 0x80;
+  private static final int ENTRY_TYPE_MASK = 0x0F;
+  private static final int ENTRY_TYPE_LUAC = 1;
+  
+  /* Deflate expands its input at most about 1032 times. */
+  private static final long MAX_EXPANSION = 1032;
+  
+  public static class Entry {
+    
+    public final String name;
+    public final byte[] data;
+    
+    Entry(String name, byte[] data) {
+      this.name = name;
+      this.data = data;
+    }
+    
+  }
+  
+  public static boolean isPdz(String name) {
+    return name.toLowerCase().endsWith(EXTENSION);
+  }
+  
+  public static List<Entry> readLuaEntries(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return readLuaEntries(in);
+    } finally {
+      in.close();
+    }
+  }
+  
+  public static List<Entry> readLuaEntries(InputStream in) throws IOException {
+    PdzFile pdz = new PdzFile(in);
+    byte[] magic = pdz.read(MAGIC.length);
+    if(!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("not a .pdz file");
+    }
+    int flags = pdz.readInt();
+    if((flags & FLAG_ENCRYPTED) != 0) {
+      throw new IOException("encrypted .pdz files are not supported");
+    }
+    List<Entry> entries = new ArrayList<Entry>();
+    while(true) {
+      int header = pdz.readIntOrEOF();
+      if(pdz.eof) break;
+      int entryFlags = header & 0xFF;
+      int length = header >>> 8;
+      String name = pdz.readName();
+      pdz.align();
+      boolean lua = (entryFlags & ENTRY_TYPE_MASK) == ENTRY_TYPE_LUAC;
+      if((entryFlags & ENTRY_COMPRESSED) != 0) {
+        if(length < 4) {
+          throw new IOException("bad .pdz entry: " + name);
+        }
+        int size = pdz.readInt();
+        if(size < 0) {
+          throw new IOException("bad .pdz entry: " + name);
+        }
+        if(lua) {
+          entries.add(new Entry(name, inflate(pdz.read(length - 4), size, name)));
+        } else {
+          pdz.skip(length - 4);
+        }
+      } else if(lua) {
+        entries.add(new Entry(name, pdz.read(length)));
+      } else {
+        pdz.skip(length);
+      }
+    }
+    return entries;
+  }
+  
+  private static byte[] inflate(byte[] compressed, int size, String name) throws IOException {
+    // a size no stream of this length can inflate to is not allocated
+    if(size > (compressed.length + 1) * MAX_EXPANSION) {
+      throw new IOException("bad compressed .pdz entry: " + name);
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] data = new byte[size];
+      int len = 0;
+      while(len < size && !inflater.finished()) {
+        int n = inflater.inflate(data, len, size - len);
+        if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+        len += n;
+      }
+      if(len != size) {
+        throw new IOException("bad compressed .pdz entry: " + name);
+      }
+      return data;
+    } catch(DataFormatException e) {
+      throw new IOException("bad compressed .pdz entry: " + name);
+    } finally {
+      inflater.end();
+    }
+  }
+  
+  private final InputStream in;
+  private long position;
+  private boolean eof;
+  
+  private PdzFile(InputStream in) {
+    this.in = in;
+    position = 0;
+    eof = false;
+  }
+  
+  private byte[] read(int length) throws IOException {
+    byte[] data = new byte[length];
+    int len = 0;
+    while(len < length) {
+      int n = in.read(data, len, length - len);
+      if(n < 0) throw new EOFException("truncated .pdz file");
+      len += n;
+    }
+    position += length;
+    return data;
+  }
+  
+  private void skip(long length) throws IOException {
+    while(length > 0) {
+      long n = in.skip(length);
+      if(n <= 0) {
+        if(in.read() < 0) throw new EOFException("truncated .pdz file");
+        n = 1;
+      }
+      length -= n;
+      position += n;
+    }
+  }
+  
+  private int readInt() throws IOException {
+    byte[] b = read(4);
+    return (b[0] & 0xFF) | (b[1] & 0xFF) << 8 | (b[2] & 0xFF) << 16 | (b[3] & 0xFF) << 24;
+  }
+  
+  private int readIntOrEOF() throws IOException {
+    int first = in.read();
+    if(first < 0) {
+      eof = true;
+      return -1;
+    }
+    position++;
+    byte[] b = read(3);
+    return first | (b[0] & 0xFF) << 8 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 24;
+  }
+  
+  private String readName() throws IOException {
+    ByteArrayOutputStream name = new ByteArrayOutputStream();
+    int c;
+    while((c = in.read()) != 0) {
+      if(c < 0) throw new EOFException("truncated .pdz file");
+      name.write(c);
+    }
+    position += name.size() + 1;
+    return new String(name.toByteArray(), Charset.forName("UTF-8"));
+  }
+  
+  private void align() throws IOException {
+    skip((4 - (position & 3)) & 3);
+  }
+  
+}
@@ -28,20 +28,12 @@ else
 fi
 
 if [ -z "$OUTPUTDIR" ]; then OUTPUTDIR=$INPUTDIR; fi
-IFS=$(printf '\n')
-find "$INPUTDIR" ! -name "$(printf "*\n*")" -name '*.luac' > tmp
-while IFS= read -r LUACFILE; do
-	# Get the name of the new source file
-	LUAFILE=$(echo "$LUACFILE" | sed "s+$INPUTDIR+$OUTPUTDIR+gI" | sed 's+.luac+.lua+gI')
-    	echo "Decompiling $LUAFILE..."
-	
-	# If the folder containing it doesn't exist, create it
-	[ ! -f "$LUAFILE" ] && mkdir -p "$(dirname "$LUAFILE")"
-	
-	# Run unluac
-	java -jar "$(dirname "$0")/unluac.jar" -o "$LUAFILE" "$LUACFILE"
-	
-	# Remove the old bytecode file if '-r' was passed
-	[ $REMOVE -eq 1 ] && rm -f "$LUACFILE"
-done < tmp
-rm tmp
\ No newline at end of file
+
+# Decompile the whole tree in a single JVM, one file per processor at a time
+JOBS=$(getconf _NPROCESSORS_ONLN 2>/dev/null || echo 1)
+java -jar "$(dirname "$0")/unluac.jar" --jobs "$JOBS" --batch "$INPUTDIR" "$OUTPUTDIR"
+STATUS=$?
+
+# Remove the old bytecode files if '-r' was passed
+[ $REMOVE -eq 1 ] && find "$INPUTDIR" -type f -iname '*.luac' -exec rm -f {} +
+exit $STATUS